@@ -0,0 +1,142 @@
+/**
+    UberAndroidNetwork: A JSON/XML network abstraction layer
+    Copyright (c) 2011 by Jordan Bonnet, Uber Technologies
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+*/
+
+package com.uber.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import org.json.JSONObject;
+
+/**
+ * Envelope sending several small JSON requests to the same UrlAddress at
+ * once. The body looks like:
+ * 
+ * <pre>
+ * {"requests":[{"method":"POST","path":"/ping","body":{...}}, ...]}
+ * </pre>
+ * 
+ * and the server is expected to answer, in the same order:
+ * 
+ * <pre>
+ * {"responses":[{"status":200,"body":{...}}, ...]}
+ * </pre>
+ */
+class BatchRequest extends Request {
+
+	public static final int MAX_PARTS = 20;
+
+	private final ArrayList<Request> mParts = new ArrayList<Request>();
+	private final IdentityHashMap<Request, Integer> mPartIndexes = new IdentityHashMap<Request, Integer>();
+	private boolean mIsSealed = false;
+
+	public BatchRequest(UrlAddress urlAddress, String batchPath, Request firstPart) {
+		super(urlAddress, batchPath, "POST", null, "application/json", Response.JSON_TYPE, -1, null, firstPart.getPriority());
+		append(firstPart);
+	}
+
+	/**
+	 * @return true if the request can go in an envelope: a POST with a JSON
+	 *         body given as a string, which is embedded as is
+	 */
+	static boolean canCarry(Request request) {
+		final String contentType = request.getContentType();
+		return "POST".equals(request.getRequestMethod()) && !request.hasBinaryBody() && contentType != null && contentType.toLowerCase().contains("json");
+	}
+
+	/**
+	 * @return false if the envelope has already been sent or is full
+	 */
+	public synchronized boolean append(Request part) {
+		if (mIsSealed || mParts.size() >= MAX_PARTS) {
+			return false;
+		}
+		mPartIndexes.put(part, mParts.size());
+		mParts.add(part);
+		return true;
+	}
+
+	public synchronized ArrayList<Request> getParts() {
+		return new ArrayList<Request>(mParts);
+	}
+
+	@Override
+	public byte[] getBody() {
+		seal();
+		return super.getBody();
+	}
+
+	@Override
+	public String getBodyString() {
+		seal();
+		return super.getBodyString();
+	}
+
+	/**
+	 * Extracts the response of one part from the response of the envelope.
+	 */
+	public Response getPartResponse(Request part, Response envelope) throws ResponseException {
+		final Integer index;
+		synchronized (this) {
+			index = mPartIndexes.get(part);
+		}
+		final DataNode root = envelope.getDataNode();
+		final DataNode responses = root != null ? root.getNode("responses") : null;
+		final ArrayList<DataNode> items = responses != null ? responses.getArray() : null;
+		if (index == null || items == null || index >= items.size()) {
+			throw new ResponseException("Missing response in batch.");
+		}
+		final DataNode item = items.get(index);
+		final DataNode body = item.getNode("body");
+		final DataNode status = item.getNode("status");
+		final int responseCode = status != null ? status.getInt(envelope.getResponseCode()) : envelope.getResponseCode();
+		part.setResponseCode(responseCode);
+		try {
+			final String bodyString = body != null ? body.getString("") : "";
+			return Response.create(part, new ByteArrayInputStream(bodyString.getBytes("UTF-8")), responseCode, envelope.getLastModified());
+		} catch (UnsupportedEncodingException e) {
+			throw new ResponseException("Could not encode batched response.");
+		}
+	}
+
+	private synchronized void seal() {
+		if (!mIsSealed) {
+			mIsSealed = true;
+			final StringBuilder builder = new StringBuilder("{\"requests\":[");
+			for (int i = 0; i < mParts.size(); ++i) {
+				final Request part = mParts.get(i);
+				if (i > 0) {
+					builder.append(',');
+				}
+				builder.append("{\"method\":").append(JSONObject.quote(part.getRequestMethod()));
+				builder.append(",\"path\":").append(JSONObject.quote(part.getPath()));
+				builder.append(",\"body\":").append(part.getBodyString() != null ? part.getBodyString() : "null");
+				builder.append('}');
+			}
+			builder.append("]}");
+			setBodyString(builder.toString());
+		}
+	}
+}
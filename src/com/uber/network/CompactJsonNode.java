@@ -0,0 +1,326 @@
+/**
+    UberAndroidNetwork: A JSON/XML network abstraction layer
+    Copyright (c) 2011 by Jordan Bonnet, Uber Technologies
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+*/
+
+package com.uber.network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A JSON value parsed by JsonStreamParser. Objects and arrays hold their
+ * children in a plain array. Numbers and booleans are kept as primitive bits,
+ * so reading them with the primitive accessors neither boxes nor parses.
+ * Values read the same way they do from a JsonNode.
+ */
+class CompactJsonNode extends DataNode {
+
+	static final int TYPE_NONE = 0;
+	static final int TYPE_OBJECT = 1;
+	static final int TYPE_ARRAY = 2;
+	static final int TYPE_STRING = 3;
+	static final int TYPE_INT = 4;
+	static final int TYPE_LONG = 5;
+	static final int TYPE_DOUBLE = 6;
+	static final int TYPE_BOOLEAN = 7;
+	static final int TYPE_NULL = 8;
+
+	private static final CompactJsonNode[] NO_CHILDREN = new CompactJsonNode[0];
+
+	private final String mName;
+	private final int mType;
+	// The integer, the boolean as 0 or 1, or the raw bits of the double.
+	private final long mBits;
+	private final String mString;
+	private final CompactJsonNode[] mChildren;
+
+	private CompactJsonNode(String name, int type, long bits, String string, CompactJsonNode[] children) {
+		mName = name;
+		mType = type;
+		mBits = bits;
+		mString = string;
+		mChildren = children;
+	}
+
+	/**
+	 * @return an object or an array
+	 */
+	static CompactJsonNode createParent(String name, int type, CompactJsonNode[] children) {
+		return new CompactJsonNode(name, type, 0, null, children);
+	}
+
+	static CompactJsonNode createString(String name, String value) {
+		return new CompactJsonNode(name, TYPE_STRING, 0, value, NO_CHILDREN);
+	}
+
+	static CompactJsonNode createLong(String name, long value) {
+		final int type = value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE ? TYPE_INT : TYPE_LONG;
+		return new CompactJsonNode(name, type, value, null, NO_CHILDREN);
+	}
+
+	static CompactJsonNode createDouble(String name, double value) {
+		return new CompactJsonNode(name, TYPE_DOUBLE, Double.doubleToRawLongBits(value), null, NO_CHILDREN);
+	}
+
+	static CompactJsonNode createBoolean(String name, boolean value) {
+		return new CompactJsonNode(name, TYPE_BOOLEAN, value ? 1 : 0, null, NO_CHILDREN);
+	}
+
+	static CompactJsonNode createNull(String name) {
+		return new CompactJsonNode(name, TYPE_NULL, 0, null, NO_CHILDREN);
+	}
+
+	/**
+	 * @return a node without a value, for empty documents
+	 */
+	static CompactJsonNode createEmpty(String name) {
+		return new CompactJsonNode(name, TYPE_NONE, 0, null, NO_CHILDREN);
+	}
+
+	@Override
+	public String getName() {
+		return mName;
+	}
+
+	@Override
+	public DataNode getNode(String name) {
+		if (mType == TYPE_OBJECT) {
+			// The last one wins on duplicate names, as in JSONObject.
+			for (int i = mChildren.length - 1; i >= 0; --i) {
+				if (mChildren[i].mName.equals(name)) {
+					return mChildren[i];
+				}
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public ArrayList<DataNode> getChildren() {
+		return new ArrayList<DataNode>(Arrays.asList(mChildren));
+	}
+
+	@Override
+	public ArrayList<DataNode> getArray() {
+		if (mType == TYPE_ARRAY) {
+			return new ArrayList<DataNode>(Arrays.asList(mChildren));
+		}
+		return new ArrayList<DataNode>();
+	}
+
+	@Override
+	public int getChildCount() {
+		return mChildren.length;
+	}
+
+	@Override
+	public DataNode getChildAt(int index) {
+		return mChildren[index];
+	}
+
+	@Override
+	int getArrayLength() {
+		return mType == TYPE_ARRAY ? mChildren.length : 0;
+	}
+
+	@Override
+	public String getString(String defaultString) {
+		switch (mType) {
+		case TYPE_NONE:
+			return defaultString;
+		case TYPE_STRING:
+			return mString;
+		default:
+			return toJson();
+		}
+	}
+
+	@Override
+	public int getInt(int defaultInt) {
+		switch (mType) {
+		case TYPE_INT:
+			return (int) mBits;
+		case TYPE_DOUBLE:
+			return (int) Double.longBitsToDouble(mBits);
+		case TYPE_STRING:
+			try {
+				return Integer.parseInt(mString);
+			} catch (NumberFormatException nfe) {
+				return defaultInt;
+			}
+		default:
+			// Longs out of the int range included
+			return defaultInt;
+		}
+	}
+
+	@Override
+	public long getLongValue(long defaultLong) {
+		switch (mType) {
+		case TYPE_INT:
+		case TYPE_LONG:
+			return mBits;
+		case TYPE_DOUBLE:
+			return (long) Double.longBitsToDouble(mBits);
+		case TYPE_STRING:
+			try {
+				return Long.parseLong(mString);
+			} catch (NumberFormatException nfe) {
+				return defaultLong;
+			}
+		default:
+			return defaultLong;
+		}
+	}
+
+	@Override
+	public Long getLong(Long defaultLong) {
+		if (mType == TYPE_INT || mType == TYPE_LONG || mType == TYPE_DOUBLE) {
+			return getLongValue(0);
+		} else if (mType == TYPE_STRING) {
+			try {
+				return Long.parseLong(mString);
+			} catch (NumberFormatException nfe) {
+				return defaultLong;
+			}
+		}
+		return defaultLong;
+	}
+
+	@Override
+	public double getDouble(double defaultDouble) {
+		switch (mType) {
+		case TYPE_INT:
+		case TYPE_LONG:
+			return mBits;
+		case TYPE_DOUBLE:
+			return Double.longBitsToDouble(mBits);
+		case TYPE_STRING:
+			try {
+				return Double.parseDouble(mString);
+			} catch (NumberFormatException nfe) {
+				return defaultDouble;
+			}
+		default:
+			return defaultDouble;
+		}
+	}
+
+	@Override
+	public boolean getBooleanValue(boolean defaultBoolean) {
+		return mType == TYPE_BOOLEAN ? mBits != 0 : defaultBoolean;
+	}
+
+	@Override
+	public Boolean getBoolean(Boolean defaultValue) {
+		if (mType == TYPE_BOOLEAN) {
+			return mBits != 0;
+		}
+		return defaultValue;
+	}
+
+	/**
+	 * @return the value written back as compact JSON
+	 */
+	String toJson() {
+		final StringBuilder builder = new StringBuilder();
+		appendJson(builder);
+		return builder.toString();
+	}
+
+	private void appendJson(StringBuilder builder) {
+		switch (mType) {
+		case TYPE_OBJECT:
+			builder.append('{');
+			for (int i = 0; i < mChildren.length; ++i) {
+				if (i > 0) {
+					builder.append(',');
+				}
+				appendQuoted(builder, mChildren[i].mName);
+				builder.append(':');
+				mChildren[i].appendJson(builder);
+			}
+			builder.append('}');
+			break;
+		case TYPE_ARRAY:
+			builder.append('[');
+			for (int i = 0; i < mChildren.length; ++i) {
+				if (i > 0) {
+					builder.append(',');
+				}
+				mChildren[i].appendJson(builder);
+			}
+			builder.append(']');
+			break;
+		case TYPE_STRING:
+			appendQuoted(builder, mString);
+			break;
+		case TYPE_INT:
+		case TYPE_LONG:
+			builder.append(mBits);
+			break;
+		case TYPE_DOUBLE:
+			builder.append(Double.longBitsToDouble(mBits));
+			break;
+		case TYPE_BOOLEAN:
+			builder.append(mBits != 0);
+			break;
+		default:
+			builder.append("null");
+		}
+	}
+
+	private static void appendQuoted(StringBuilder builder, String string) {
+		builder.append('"');
+		for (int i = 0; i < string.length(); ++i) {
+			final char c = string.charAt(i);
+			switch (c) {
+			case '"':
+			case '\\':
+				builder.append('\\').append(c);
+				break;
+			case '\n':
+				builder.append("\\n");
+				break;
+			case '\r':
+				builder.append("\\r");
+				break;
+			case '\t':
+				builder.append("\\t");
+				break;
+			case '\b':
+				builder.append("\\b");
+				break;
+			case '\f':
+				builder.append("\\f");
+				break;
+			default:
+				if (c < 0x20) {
+					builder.append(String.format("\\u%04x", (int) c));
+				} else {
+					builder.append(c);
+				}
+			}
+		}
+		builder.append('"');
+	}
+}
@@ -24,9 +24,14 @@
 package com.uber.network;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 public abstract class DataNode {
 	
+	// First descendant with each name, in depth-first order.
+	private volatile HashMap<String, DataNode> mFindIndex;
+	private volatile boolean mIsFindIndexEnabled = false;
+	
 	public abstract String getName();
 	
 	public abstract DataNode getNode(String name);
@@ -45,18 +50,103 @@ public abstract class DataNode {
 	
 	public abstract Boolean getBoolean(Boolean defaultBoolean);
 
+	/**
+	 * Like {@link #getLong(Long)}, without boxing where the node supports it.
+	 */
+	public long getLongValue(long defaultLong) {
+		final Long value = getLong(null);
+		return value != null ? value : defaultLong;
+	}
+
+	public float getFloat(float defaultFloat) {
+		return (float) getDouble(defaultFloat);
+	}
+
+	/**
+	 * Like {@link #getBoolean(Boolean)}, without boxing where the node
+	 * supports it.
+	 */
+	public boolean getBooleanValue(boolean defaultBoolean) {
+		final Boolean value = getBoolean(null);
+		return value != null ? value : defaultBoolean;
+	}
+
+	/**
+	 * @return the number of children, without copying them to a list
+	 */
+	public int getChildCount() {
+		return getChildren().size();
+	}
+
+	/**
+	 * Walking the children with this and {@link #getChildCount()} doesn't
+	 * allocate a list, unlike {@link #getChildren()}.
+	 */
+	public DataNode getChildAt(int index) {
+		return getChildren().get(index);
+	}
+	
+	/**
+	 * @return the number of items if this node is an array, the same as
+	 *         getArray().size(), and 0 otherwise. Items are read with
+	 *         {@link #getChildAt(int)}.
+	 */
+	int getArrayLength() {
+		return getArray().size();
+	}
 	
 	public String getAttribute(String attributeName, String defaultValue) {
 		return defaultValue;
 	}
 	
+	/**
+	 * Makes the first find call on this node index the names of all its
+	 * descendants, so that later calls don't search the tree again. Response
+	 * root nodes have it enabled.
+	 */
+	public void setFindIndexEnabled(boolean isFindIndexEnabled) {
+		mIsFindIndexEnabled = isFindIndexEnabled;
+		if (!isFindIndexEnabled) {
+			mFindIndex = null;
+		}
+	}
+	
+	/**
+	 * @return the first descendant with the given name, depth first, or null
+	 */
 	public DataNode findNode(String name) {
-		final ArrayList<DataNode> children = getChildren();
-		for (DataNode child : children) {
+		if (!mIsFindIndexEnabled) {
+			return searchNode(name);
+		}
+		HashMap<String, DataNode> findIndex = mFindIndex;
+		if (findIndex == null) {
+			findIndex = new HashMap<String, DataNode>();
+			indexDescendants(this, findIndex);
+			mFindIndex = findIndex;
+		}
+		return findIndex.get(name);
+	}
+	
+	private static void indexDescendants(DataNode node, HashMap<String, DataNode> findIndex) {
+		final int childCount = node.getChildCount();
+		for (int i = 0; i < childCount; ++i) {
+			final DataNode child = node.getChildAt(i);
+			final String childName = child.getName();
+			if (!findIndex.containsKey(childName)) {
+				findIndex.put(childName, child);
+			}
+			indexDescendants(child, findIndex);
+		}
+	}
+	
+	private DataNode searchNode(String name) {
+		final int childCount = getChildCount();
+		for (int i = 0; i < childCount; ++i) {
+			final DataNode child = getChildAt(i);
 			if (child.getName().equals(name)) {
 				return child;
 			}
-			final DataNode node = child.findNode(name);
+			final DataNode node = child.searchNode(name);
 			if (node != null) {
 				return node;
 			}
@@ -0,0 +1,166 @@
+/**
+    UberAndroidNetwork: A JSON/XML network abstraction layer
+    Copyright (c) 2011 by Jordan Bonnet, Uber Technologies
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+*/
+
+package com.uber.network;
+
+import java.util.ArrayList;
+
+/**
+ * A path to nodes below a DataNode, such as "trip.vehicles[2].id" or
+ * "vehicles[*].id", compiled once and then evaluated against any number of
+ * JSON or XML nodes. Names select a child by name, [n] the nth item of an
+ * array and [*] every item. Evaluation walks the nodes directly, without
+ * building lists on the way.
+ * 
+ * <pre>
+ * private static final DataPath VEHICLE_IDS = DataPath.compile("vehicles[*].id");
+ * 
+ * VEHICLE_IDS.evaluate(response.getDataNode(), new DataPath.OnMatchListener() {
+ * 	public void onMatch(DataNode node) {
+ * 		ids.add(node.getString(null));
+ * 	}
+ * });
+ * </pre>
+ */
+public final class DataPath {
+
+	public interface OnMatchListener {
+		void onMatch(DataNode node);
+	}
+
+	private static final int WILDCARD = -1;
+
+	private final String mExpression;
+	// For each step, a name, or null for an index step.
+	private final String[] mNames;
+	private final int[] mIndexes;
+
+	/**
+	 * @throws IllegalArgumentException if the expression is malformed
+	 */
+	public static DataPath compile(String expression) {
+		final ArrayList<String> names = new ArrayList<String>();
+		final ArrayList<Integer> indexes = new ArrayList<Integer>();
+		int position = 0;
+		final int length = expression.length();
+		while (position < length) {
+			final char c = expression.charAt(position);
+			if (c == '[') {
+				final int end = expression.indexOf(']', position);
+				if (end < 0) {
+					throw new IllegalArgumentException("Missing ']' in " + expression);
+				}
+				final String index = expression.substring(position + 1, end).trim();
+				names.add(null);
+				if (index.equals("*")) {
+					indexes.add(WILDCARD);
+				} else {
+					try {
+						indexes.add(Integer.parseInt(index));
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Invalid index '" + index + "' in " + expression);
+					}
+					if (indexes.get(indexes.size() - 1) < 0) {
+						throw new IllegalArgumentException("Negative index in " + expression);
+					}
+				}
+				position = end + 1;
+			} else {
+				if (c == '.') {
+					if (position == 0 || position == length - 1) {
+						throw new IllegalArgumentException("Misplaced '.' in " + expression);
+					}
+					position++;
+				}
+				int end = position;
+				while (end < length && expression.charAt(end) != '.' && expression.charAt(end) != '[') {
+					end++;
+				}
+				if (end == position) {
+					throw new IllegalArgumentException("Empty name in " + expression);
+				}
+				names.add(expression.substring(position, end));
+				indexes.add(0);
+				position = end;
+			}
+		}
+		final int[] indexArray = new int[indexes.size()];
+		for (int i = 0; i < indexArray.length; ++i) {
+			indexArray[i] = indexes.get(i);
+		}
+		return new DataPath(expression, names.toArray(new String[names.size()]), indexArray);
+	}
+
+	private DataPath(String expression, String[] names, int[] indexes) {
+		mExpression = expression;
+		mNames = names;
+		mIndexes = indexes;
+	}
+
+	/**
+	 * @return the first node the path leads to, or null
+	 */
+	public DataNode evaluate(DataNode node) {
+		return evaluate(node, 0, null);
+	}
+
+	/**
+	 * Calls the listener with every node the path leads to, in order.
+	 */
+	public void evaluate(DataNode node, OnMatchListener listener) {
+		evaluate(node, 0, listener);
+	}
+
+	/**
+	 * @return the first match if there's no listener to call, or null
+	 */
+	private DataNode evaluate(DataNode node, int step, OnMatchListener listener) {
+		while (node != null && step < mNames.length) {
+			if (mNames[step] != null) {
+				node = node.getNode(mNames[step]);
+			} else if (mIndexes[step] == WILDCARD) {
+				final int length = node.getArrayLength();
+				for (int i = 0; i < length; ++i) {
+					final DataNode match = evaluate(node.getChildAt(i), step + 1, listener);
+					if (match != null) {
+						return match;
+					}
+				}
+				return null;
+			} else {
+				node = mIndexes[step] < node.getArrayLength() ? node.getChildAt(mIndexes[step]) : null;
+			}
+			step++;
+		}
+		if (node != null && listener != null) {
+			listener.onMatch(node);
+			return null;
+		}
+		return node;
+	}
+
+	@Override
+	public String toString() {
+		return mExpression;
+	}
+}
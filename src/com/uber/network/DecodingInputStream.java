@@ -0,0 +1,320 @@
+/**
+    UberAndroidNetwork: A JSON/XML network abstraction layer
+    Copyright (c) 2011 by Jordan Bonnet, Uber Technologies
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+*/
+
+package com.uber.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes a gzip or deflate response body with an Inflater taken from a
+ * pool, where GZIPInputStream allocates a new one, and its native buffers,
+ * for every response. Bodies in any other encoding are passed through as they
+ * are. Counts the bytes read from the wire and the bytes decoded from them.
+ */
+class DecodingInputStream extends InputStream {
+
+	/**
+	 * The value of the Accept-Encoding header for the encodings supported
+	 * here.
+	 */
+	static final String ACCEPT_ENCODING = "gzip, deflate";
+
+	private static final int GZIP = 0;
+	private static final int DEFLATE = 1;
+	private static final int IDENTITY = 2;
+
+	private static final int BUFFER_SIZE = 8192;
+	private static final int MAX_POOLED_INFLATERS = 4;
+
+	private static final int FLAG_HCRC = 2;
+	private static final int FLAG_EXTRA = 4;
+	private static final int FLAG_NAME = 8;
+	private static final int FLAG_COMMENT = 16;
+
+	// Raw inflaters for gzip and headerless deflate, zlib ones for deflate.
+	private static final LinkedList<Inflater> sRawInflaters = new LinkedList<Inflater>();
+	private static final LinkedList<Inflater> sZlibInflaters = new LinkedList<Inflater>();
+
+	private final InputStream mSource;
+	private final int mEncoding;
+	private final byte[] mBuffer = new byte[BUFFER_SIZE];
+	private final byte[] mSingleByte = new byte[1];
+	private final CRC32 mCrc = new CRC32();
+	private int mBufferPosition = 0;
+	private int mBufferLength = 0;
+	private Inflater mInflater;
+	private boolean mIsRaw;
+	private boolean mIsStarted = false;
+	private boolean mIsFinished = false;
+	private long mEncodedCount = 0;
+	private long mDecodedCount = 0;
+
+	/**
+	 * @param contentEncoding the Content-Encoding of the stream, or null
+	 * @return a stream decoding the given one, or null if it is null
+	 */
+	static DecodingInputStream wrap(InputStream stream, String contentEncoding) {
+		if (stream == null) {
+			return null;
+		}
+		final String encoding = contentEncoding != null ? contentEncoding.trim() : "";
+		if (encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("x-gzip")) {
+			return new DecodingInputStream(stream, GZIP);
+		} else if (encoding.equalsIgnoreCase("deflate")) {
+			return new DecodingInputStream(stream, DEFLATE);
+		}
+		return new DecodingInputStream(stream, IDENTITY);
+	}
+
+	private DecodingInputStream(InputStream source, int encoding) {
+		mSource = source;
+		mEncoding = encoding;
+	}
+
+	/**
+	 * @return the number of bytes read from the wire so far
+	 */
+	long getEncodedCount() {
+		return mEncodedCount;
+	}
+
+	/**
+	 * @return the number of bytes decoded so far
+	 */
+	long getDecodedCount() {
+		return mDecodedCount;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(mSingleByte, 0, 1) == -1 ? -1 : mSingleByte[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int count) throws IOException {
+		if (mIsFinished) {
+			return -1;
+		}
+		if (mEncoding == IDENTITY) {
+			final int read = mSource.read(buffer, offset, count);
+			if (read > 0) {
+				mEncodedCount += read;
+				mDecodedCount += read;
+			}
+			return read;
+		}
+		if (!mIsStarted) {
+			mIsStarted = true;
+			if (!start()) {
+				// Empty body, as in answers to HEAD requests.
+				finish();
+				return -1;
+			}
+		}
+		if (count == 0) {
+			return 0;
+		}
+		try {
+			while (true) {
+				final int decoded = mInflater.inflate(buffer, offset, count);
+				if (decoded > 0) {
+					if (mEncoding == GZIP) {
+						mCrc.update(buffer, offset, decoded);
+					}
+					mDecodedCount += decoded;
+					return decoded;
+				}
+				if (mInflater.finished()) {
+					mBufferPosition = mBufferLength - mInflater.getRemaining();
+					if (mEncoding == GZIP) {
+						readGzipTrailer();
+					}
+					finish();
+					return -1;
+				}
+				if (mInflater.needsDictionary()) {
+					throw new IOException("Deflate dictionaries are not supported");
+				}
+				if (mInflater.needsInput()) {
+					if (mBufferPosition >= mBufferLength) {
+						fill();
+					}
+					mInflater.setInput(mBuffer, mBufferPosition, mBufferLength - mBufferPosition);
+					mBufferPosition = mBufferLength;
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt " + (mEncoding == GZIP ? "gzip" : "deflate") + " stream: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public int available() throws IOException {
+		return mIsFinished ? 0 : mSource.available();
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+		mSource.close();
+	}
+
+	/**
+	 * Reads the header, if any, and picks an Inflater.
+	 * 
+	 * @return false if the body is empty
+	 */
+	private boolean start() throws IOException {
+		if (!tryFill()) {
+			return false;
+		}
+		if (mEncoding == GZIP) {
+			readGzipHeader();
+			mIsRaw = true;
+		} else {
+			// Deflate is meant to be zlib wrapped, but some servers send it
+			// without the wrapper.
+			mIsRaw = !isZlibHeader();
+		}
+		mInflater = obtainInflater(mIsRaw);
+		return true;
+	}
+
+	private boolean isZlibHeader() throws IOException {
+		if (mBufferLength - mBufferPosition < 2) {
+			return true;
+		}
+		final int cmf = mBuffer[mBufferPosition] & 0xff;
+		final int flg = mBuffer[mBufferPosition + 1] & 0xff;
+		return (cmf & 0x0f) == 8 && (cmf << 8 | flg) % 31 == 0;
+	}
+
+	private void readGzipHeader() throws IOException {
+		if (readByte() != 0x1f || readByte() != 0x8b) {
+			throw new IOException("Not in gzip format");
+		}
+		if (readByte() != 8) {
+			throw new IOException("Unsupported gzip compression method");
+		}
+		final int flags = readByte();
+		// Modification time, extra flags and OS
+		skipBytes(6);
+		if ((flags & FLAG_EXTRA) != 0) {
+			skipBytes(readByte() | readByte() << 8);
+		}
+		if ((flags & FLAG_NAME) != 0) {
+			while (readByte() != 0) {
+				// Skip
+			}
+		}
+		if ((flags & FLAG_COMMENT) != 0) {
+			while (readByte() != 0) {
+				// Skip
+			}
+		}
+		if ((flags & FLAG_HCRC) != 0) {
+			skipBytes(2);
+		}
+	}
+
+	private void readGzipTrailer() throws IOException {
+		final long crc = readInt() & 0xffffffffL;
+		final long size = readInt() & 0xffffffffL;
+		if (crc != mCrc.getValue()) {
+			throw new IOException("Corrupt gzip stream: bad CRC");
+		}
+		if (size != (mDecodedCount & 0xffffffffL)) {
+			throw new IOException("Corrupt gzip stream: bad size");
+		}
+	}
+
+	private int readInt() throws IOException {
+		return readByte() | readByte() << 8 | readByte() << 16 | readByte() << 24;
+	}
+
+	private void skipBytes(int count) throws IOException {
+		for (int i = 0; i < count; ++i) {
+			readByte();
+		}
+	}
+
+	private int readByte() throws IOException {
+		if (mBufferPosition >= mBufferLength) {
+			fill();
+		}
+		return mBuffer[mBufferPosition++] & 0xff;
+	}
+
+	private void fill() throws IOException {
+		if (!tryFill()) {
+			throw new EOFException("Unexpected end of " + (mEncoding == GZIP ? "gzip" : "deflate") + " stream");
+		}
+	}
+
+	private boolean tryFill() throws IOException {
+		final int count = mSource.read(mBuffer, 0, mBuffer.length);
+		if (count == -1) {
+			return false;
+		}
+		mBufferPosition = 0;
+		mBufferLength = count;
+		mEncodedCount += count;
+		return true;
+	}
+
+	private void finish() {
+		mIsFinished = true;
+		if (mInflater != null) {
+			recycleInflater(mInflater, mIsRaw);
+			mInflater = null;
+		}
+	}
+
+	private static Inflater obtainInflater(boolean isRaw) {
+		final LinkedList<Inflater> pool = isRaw ? sRawInflaters : sZlibInflaters;
+		synchronized (pool) {
+			if (!pool.isEmpty()) {
+				return pool.removeFirst();
+			}
+		}
+		return new Inflater(isRaw);
+	}
+
+	private static void recycleInflater(Inflater inflater, boolean isRaw) {
+		inflater.reset();
+		final LinkedList<Inflater> pool = isRaw ? sRawInflaters : sZlibInflaters;
+		synchronized (pool) {
+			if (pool.size() < MAX_POOLED_INFLATERS) {
+				pool.addFirst(inflater);
+				return;
+			}
+		}
+		inflater.end();
+	}
+}
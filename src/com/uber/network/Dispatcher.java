@@ -0,0 +1,884 @@
+/**
+    UberAndroidNetwork: A JSON/XML network abstraction layer
+    Copyright (c) 2011 by Jordan Bonnet, Uber Technologies
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+*/
+
+package com.uber.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HttpsURLConnection;
+
+import org.acra.ACRA;
+
+import android.os.Bundle;
+
+import com.uber.utils.StreamUtils;
+import com.uber.utils.UBLogs;
+
+/**
+ * Runs the requests of a shared queue: connection, response handling,
+ * retries and address rotation. The results go through
+ * {@link #deliver(int, Request, Object)}, which the owner, a
+ * {@link Downloader} or the {@link NetworkEngine}, forwards to the UI thread.
+ */
+abstract class Dispatcher {
+
+	static final int DONE = 0;
+	static final int PRE_LOAD = 1;
+	static final int ERROR = 2;
+
+	// Hedge delay until enough latencies have been measured.
+	private static final long DEFAULT_HEDGE_DELAY_MS = 1000;
+
+	// Aborts the transfers that go past the deadline of their request.
+	private static final ScheduledExecutorService sWatchdog = Executors.newSingleThreadScheduledExecutor();
+
+	private static final UberHostnameVerifier HOSTNAME_VERIFIER = new UberHostnameVerifier();
+
+	private volatile boolean mIsConnected = true;
+	private final RequestQueue mRequestQueue = new RequestQueue();
+	private final RequestCoalescer mCoalescer = new RequestCoalescer();
+	private boolean mIsCoalescingEnabled = true;
+	private final IdentityHashMap<UrlAddress, BatchRequest> mOpenBatches = new IdentityHashMap<UrlAddress, BatchRequest>();
+	private String mBatchPath = null;
+	private long mBatchWindowMs = 0;
+	private double mHedgePercentile = 0;
+	private long mHedgeMinDelayMs = 0;
+	private HttpURLConnection mConnection = null;
+	private Bundle headerParams;
+
+	/**
+	 * Hands a result over to the owner. Called from the worker threads.
+	 */
+	protected abstract void deliver(int retCode, Request request, Object result);
+
+	/**
+	 * @return true if the workers should stop processing requests
+	 */
+	protected abstract boolean isStopped();
+
+	public void setConnection(HttpURLConnection connection) {
+		mConnection = connection;
+	}
+
+	public void setHeaderParams(Bundle headerParams) {
+		this.headerParams = headerParams;
+	}
+
+	public void setMaxPerHost(int maxPerHost) {
+		mRequestQueue.setMaxPerHost(maxPerHost);
+	}
+
+	public void setCoalescingEnabled(boolean isCoalescingEnabled) {
+		mIsCoalescingEnabled = isCoalescingEnabled;
+	}
+
+	public void setBatching(String batchPath, long windowMs) {
+		mBatchPath = batchPath;
+		mBatchWindowMs = windowMs;
+	}
+
+	public void setHedging(double percentile, long minDelayMs) {
+		mHedgePercentile = percentile;
+		mHedgeMinDelayMs = minDelayMs;
+	}
+
+	/**
+	 * @return false once a request ran out of attempts because of network
+	 *         errors, until a server answers again
+	 */
+	public boolean isConnected() {
+		return mIsConnected;
+	}
+
+	public RequestQueue getQueue() {
+		return mRequestQueue;
+	}
+
+	public void enqueue(Request request) {
+		RetryScheduler.getInstance().onRequest();
+		if (request.getStartTime() == 0) {
+			request.setStartTime(System.currentTimeMillis());
+		}
+		
+		// Parsed responses kept in memory don't even need a worker
+		final Response cachedResponse = MemoryCache.getInstance().get(request);
+		if (cachedResponse != null) {
+			if (request.isFirstAttempt()) {
+				request.setFirstAttempt(false);
+				deliver(PRE_LOAD, request, null);
+			}
+			publishResult(DONE, request, cachedResponse);
+			return;
+		}
+		
+		if (mIsCoalescingEnabled && mCoalescer.attach(request)) {
+			if (request.isFirstAttempt()) {
+				request.setFirstAttempt(false);
+				deliver(PRE_LOAD, request, null);
+			}
+			return;
+		}
+		if (!addToBatch(request)) {
+			mRequestQueue.add(request);
+		}
+	}
+
+	/**
+	 * Cancels a request, whether it is queued, waiting for an identical one,
+	 * or in flight. Its listener won't be called.
+	 */
+	public void cancelRequest(Request request) {
+		request.cancel();
+		mRequestQueue.remove(request);
+		mCoalescer.remove(request);
+		resendFollowers(request);
+	}
+
+	/**
+	 * Sends the requests that were waiting for the result of a cancelled one
+	 * on their own.
+	 */
+	private void resendFollowers(Request request) {
+		for (Request follower : mCoalescer.detach(request)) {
+			if (!follower.isCancelled()) {
+				enqueue(follower);
+			}
+		}
+	}
+
+	/**
+	 * Cancels every request with the given tag.
+	 */
+	public void cancelRequests(Object tag) {
+		for (Request request : getRequests()) {
+			if (tag == null ? request.getTag() == null : tag.equals(request.getTag())) {
+				cancelRequest(request);
+			}
+		}
+	}
+
+	public void cancelAll() {
+		for (Request request : getRequests()) {
+			cancelRequest(request);
+		}
+	}
+
+	/**
+	 * @return every request that hasn't got a result yet
+	 */
+	private ArrayList<Request> getRequests() {
+		final ArrayList<Request> requests = new ArrayList<Request>();
+		for (Request request : mRequestQueue.getRequests()) {
+			if (request instanceof BatchRequest) {
+				requests.addAll(((BatchRequest) request).getParts());
+			} else {
+				requests.add(request);
+			}
+		}
+		requests.addAll(mCoalescer.getFollowers());
+		return requests;
+	}
+
+	/**
+	 * @return true if the request will be sent as part of a batch
+	 */
+	private boolean addToBatch(Request request) {
+		final UrlAddress urlAddress = request.getUrlAddress();
+		if (mBatchPath == null || !request.isBatchable() || urlAddress == null || !BatchRequest.canCarry(request)) {
+			return false;
+		}
+		synchronized (mOpenBatches) {
+			final BatchRequest batch = mOpenBatches.get(urlAddress);
+			if (batch == null || !batch.append(request)) {
+				final BatchRequest newBatch = new BatchRequest(urlAddress, mBatchPath, request);
+				mOpenBatches.put(urlAddress, newBatch);
+				mRequestQueue.add(newBatch, mBatchWindowMs);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Picks the server for the next attempt of the request and connects to it.
+	 * 
+	 * @param request
+	 * @return the connection object, or null if the request has no address
+	 * @throws IOException
+	 */
+	private HttpURLConnection connect(Request request) throws IOException {
+		if (mConnection != null) {
+			return mConnection;
+		}
+		final UrlAddress urlAddress = request.getUrlAddress();
+		if (urlAddress == null) {
+			return null;
+		}
+		final String address = urlAddress.selectAddress();
+		if (address == null) {
+			throw new CircuitOpenException("Every server is unavailable for now");
+		}
+		request.setServerAddress(address);
+		return connect(request, address, false);
+	}
+
+	/**
+	 * Connects like {@link #connect(Request)}, but sends a duplicate to
+	 * another server if the first one is slower than usual to answer.
+	 */
+	private HttpURLConnection connectHedged(final Request request) throws IOException {
+		final UrlAddress urlAddress = request.getUrlAddress();
+		final String primary = urlAddress.selectAddress();
+		if (primary == null) {
+			throw new CircuitOpenException("Every server is unavailable for now");
+		}
+		final String secondary = urlAddress.selectAlternateAddress(primary);
+		if (secondary == null) {
+			request.setServerAddress(primary);
+			return connect(request, primary, false);
+		}
+		long hedgeDelay = urlAddress.getLatencyPercentile(mHedgePercentile);
+		if (hedgeDelay < 0) {
+			hedgeDelay = DEFAULT_HEDGE_DELAY_MS;
+		}
+		final HedgedConnector connector = new HedgedConnector(new HedgedConnector.Opener() {
+			@Override
+			public HttpURLConnection open(String address) throws IOException {
+				return connect(request, address, true);
+			}
+		});
+		request.setActiveConnector(connector);
+		if (request.isCancelled()) {
+			// Cancelled before the connector could be reached.
+			connector.abort();
+		}
+		try {
+			final HttpURLConnection connection = connector.connect(primary, secondary, Math.max(hedgeDelay, mHedgeMinDelayMs), request.getRemainingTime());
+			request.setActiveConnection(connection);
+			return connection;
+		} finally {
+			request.setActiveConnector(null);
+			request.setServerAddress(connector.getWinnerAddress());
+		}
+	}
+
+	private boolean shouldHedge(Request request) {
+		return mHedgePercentile > 0 && mConnection == null && request.getUrlAddress() != null && request.getUrlAddress().size() > 1
+				&& request.getPriority() == Downloader.DOWNLOADER_HIGH_PRIORITY && request.isIdempotent() && !(request instanceof BatchRequest);
+	}
+
+	/**
+	 * This is a *smart* helper method which, given a request, manages to create
+	 * the right kind of http connection.
+	 * 
+	 * @param request
+	 * @param address the server to send the request to
+	 * @param isRacing true if this is one of several hedged attempts, which
+	 *            only becomes the active connection of the request if it wins
+	 * @return the connection object
+	 * @throws IOException
+	 */
+	private HttpURLConnection connect(Request request, String address, boolean isRacing) throws IOException {
+		if (mConnection != null) {
+			return mConnection;
+			
+		} else {
+			
+			HttpURLConnection connection = null;
+		
+			// Get url
+			final UrlAddress urlAddress = request.getUrlAddress();
+			if (urlAddress != null) {
+				
+				// Get protocol
+				URL url = new URL(address + request.getPath());
+								
+				final String protocol = url.getProtocol();
+				
+				// Handle both protocols
+				if (protocol.equals("http")) {
+					connection = (HttpURLConnection) url.openConnection();
+				} else if (protocol.equals("https")) {
+					final HttpsURLConnection sslConnection = (HttpsURLConnection) url.openConnection(Proxy.NO_PROXY);
+					try {
+						sslConnection.setSSLSocketFactory(UberSSLSocketFactory.getInstance());
+					} catch (GeneralSecurityException e) {
+						// Pretty fucked here
+						ACRA.getErrorReporter().handleSilentException(e);
+					}
+					sslConnection.setHostnameVerifier(HOSTNAME_VERIFIER);
+					connection = sslConnection;
+				}
+				
+				if (connection != null) {
+					
+					if (!isRacing) {
+						request.setActiveConnection(connection);
+					}
+					
+					// Set timeouts, within the deadline of the request. Unless the
+					// request has its own, they follow the observed round trips.
+					// A request that isn't safe to send twice keeps waiting for
+					// its response, since a read timeout would retry it.
+					final RttEstimator rttEstimator = RttEstimator.getInstance();
+					final long remainingTime = request.getRemainingTime();
+					final int connectTimeout = request.getConnectTimeout() > 0 ? request.getConnectTimeout() : rttEstimator.getConnectTimeout(address);
+					final int readTimeout = request.getReadTimeout() > 0 || !request.isIdempotent() ? request.getReadTimeout() : rttEstimator.getReadTimeout(address);
+					connection.setConnectTimeout(getTimeout(connectTimeout, remainingTime));
+					connection.setReadTimeout(getTimeout(readTimeout, remainingTime));
+					
+					// Ask for a compressed response, decoded by DecodingInputStream
+					connection.setRequestProperty("Accept-Encoding", DecodingInputStream.ACCEPT_ENCODING);
+					
+					// Only send the body back if it changed since it was cached
+					final HttpCache.Entry cacheEntry = request.getCacheEntry();
+					if (cacheEntry != null) {
+						if (cacheEntry.etag != null) {
+							connection.setRequestProperty("If-None-Match", cacheEntry.etag);
+						}
+						if (cacheEntry.lastModifiedHeader != null) {
+							connection.setRequestProperty("If-Modified-Since", cacheEntry.lastModifiedHeader);
+						}
+					}
+					
+					// Add custom headers
+					if (headerParams != null) {
+						for (String key : headerParams.keySet()) {
+							final Object param = headerParams.get(key);
+							if (param != null) {
+								if (param instanceof String) {
+									connection.addRequestProperty(key, (String) param);
+								} else {
+									connection.addRequestProperty(key, param.toString());
+								}
+							}
+						}	
+					}
+					
+					
+					// Set method
+					final String method = request.getRequestMethod();
+					connection.setRequestMethod(method);
+					
+					// Set content type
+					if (request.getContentType() != null) {
+						connection.setRequestProperty("Content-Type", request.getContentType());
+					}
+					
+					// Handle if has body or not
+					final RequestBody body = isBodySent(request) ? request.getRequestBody() : null;
+					if (body != null) {
+						RequestBody.send(connection, request, body);
+					} else {
+						connection.setRequestProperty("Content-length", "0");
+						connection.connect();
+					}
+				}
+			}
+			return connection;
+		}
+	}
+
+
+	/**
+	 * Processes requests from the shared queue.
+	 * 
+	 * @param idleTimeoutMs how long to wait for new requests once the queue is
+	 *            idle, or a negative value to run until the queue is closed
+	 * @return false if the worker got cancelled or interrupted
+	 */
+	boolean runWorker(long idleTimeoutMs) {
+		while (!isStopped()) {
+			final Request request;
+			try {
+				request = mRequestQueue.take(idleTimeoutMs);
+			} catch (InterruptedException e) {
+				return false;
+			}
+			if (request == null) {
+				return true;
+			}
+			if (isStopped()) {
+				// Stopped while waiting, for instance by a restart of the
+				// engine, whose new workers will take it.
+				mRequestQueue.requeue(request);
+				return false;
+			}
+			if (request.isCancelled()) {
+				// Possibly cancelled through Request.cancel() alone.
+				mRequestQueue.release(request);
+				resendFollowers(request);
+				continue;
+			}
+			boolean isDone = true;
+			try {
+				if (request.isFirstAttempt()) {
+					resetRequestAttemptCount(request);
+					if (request instanceof BatchRequest) {
+						for (Request part : ((BatchRequest) request).getParts()) {
+							deliver(PRE_LOAD, part, null);
+						}
+					} else {
+						deliver(PRE_LOAD, request, null);
+					}
+					request.setFirstAttempt(false);
+				}
+				isDone = executeRequest(request);
+			} finally {
+				if (request.isCancelled()) {
+					mRequestQueue.release(request);
+					resendFollowers(request);
+				} else if (isDone) {
+					mRequestQueue.release(request);
+				} else if (isStopped()) {
+					mRequestQueue.requeue(request);
+				} else if (RetryScheduler.getInstance().tryAcquireRetry()) {
+					// Retry later so more urgent requests can go first.
+					mRequestQueue.requeue(request, RetryScheduler.getInstance().nextDelay(request));
+				} else {
+					publishResult(ERROR, request, new Exception("Retry budget exhausted"));
+					mRequestQueue.release(request);
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Runs a single attempt of the given request.
+	 * 
+	 * @param request
+	 * @return true if a result has been published for the request, false if
+	 *         it should be attempted again
+	 */
+	private boolean executeRequest(final Request request) {
+		// Logs
+		long timeInMs = System.currentTimeMillis();
+		
+		if (!request.getPath().equals("/mobile_logs")) {
+			UBLogs.logRequest(request);
+		} else {
+			UBLogs.addLine("MOBILE LOGS \n");
+		}
+		
+		final long remainingTime = request.getRemainingTime();
+		if (remainingTime <= 0) {
+			publishResult(ERROR, request, new SocketTimeoutException("Deadline exceeded"));
+			return true;
+		}
+		
+		// Cached in memory while this request was waiting in the queue
+		final Response cachedResponse = MemoryCache.getInstance().recheck(request);
+		if (cachedResponse != null) {
+			publishResult(DONE, request, cachedResponse);
+			return true;
+		}
+		
+		// Serve fresh responses from the cache, revalidate stale ones
+		final HttpCache cache = HttpCache.getInstance();
+		HttpCache.Entry cacheEntry = cache.get(request);
+		if (cacheEntry != null && cacheEntry.isFresh()) {
+			final Response response = cache.createResponse(request, cacheEntry, false);
+			if (response != null) {
+				UBLogs.addLine("Served from cache: " + request.getPath());
+				publishResult(DONE, request, response);
+				return true;
+			}
+			cacheEntry = null;
+		}
+		request.setCacheEntry(cacheEntry != null && cacheEntry.hasValidators() ? cacheEntry : null);
+		
+		final ScheduledFuture<?> watchdog = remainingTime == Long.MAX_VALUE ? null : sWatchdog.schedule(new Runnable() {
+			@Override
+			public void run() {
+				request.abort();
+			}
+		}, remainingTime, TimeUnit.MILLISECONDS);
+		
+		HttpURLConnection connection = null;
+		InputStream rawStream = null;
+		DecodingInputStream responseStream = null;
+		HttpCache.CachingInputStream cachingStream = null;
+		try {	
+			
+			final boolean isHedged = shouldHedge(request);
+			final long connectStart = System.currentTimeMillis();
+			connection = isHedged ? connectHedged(request) : connect(request);
+			
+			if (connection == null) {
+				return onNetworkError(request);
+			}
+			
+			final long connectEnd = System.currentTimeMillis();
+			request.setResponseCode(connection.getResponseCode());
+			
+			// Hedged attempts race each other, their timings say little.
+			if (!isHedged && mConnection == null) {
+				final RttEstimator rttEstimator = RttEstimator.getInstance();
+				if (!isBodySent(request)) {
+					// Otherwise the upload is timed along with the connect.
+					rttEstimator.recordConnect(request.getServerAddress(), connectEnd - connectStart);
+				}
+				rttEstimator.recordResponse(request.getServerAddress(), System.currentTimeMillis() - connectEnd);
+			}
+			
+			final int responseCode = request.getResponseCode();
+			recordServerHealth(request, responseCode > 500 || request.getUrlAddress().shouldRotateWithCode(responseCode), timeInMs);
+			if (responseCode < 0) {
+				// DON'T ASK! Legacy...
+				connection.disconnect();
+				return false;
+			} else
+			if (responseCode == 304 && request.getCacheEntry() != null) {
+				// Not modified, the cached body is still good.
+				StreamUtils.consume(connection.getInputStream());
+				cache.update(request.getCacheEntry(), connection);
+				final Response response = cache.createResponse(request, request.getCacheEntry(), true);
+				request.setCacheEntry(null);
+				if (response == null) {
+					// Lost in the meantime, ask for the whole response again.
+					return false;
+				}
+				UBLogs.logResponse(request, connection, response, timeInMs);
+				publishResult(DONE, request, response);
+				return true;
+			} else
+			if (responseCode == 200) {
+				rawStream = connection.getInputStream();
+			} else
+			if (responseCode > 500) {
+				UBLogs.addLine("Response code: " + responseCode);
+				StreamUtils.consume(connection.getErrorStream());
+				final long retryAfter = getRetryAfter(connection);
+				if ((responseCode == 503 || retryAfter >= 0) && request.getAttemptCount() > 1) {
+					// The server is overloaded, try again once it says so.
+					request.setAttemptCount(request.getAttemptCount() - 1);
+					request.setRetryDelay(retryAfter);
+					return false;
+				}
+				publishResult(ERROR, request, null);
+				return true;
+			} else {
+				rawStream = connection.getErrorStream();
+			}
+			
+			responseStream = DecodingInputStream.wrap(rawStream, connection.getContentEncoding());
+			
+			if (Downloader.REPORT_NETWORK_PROBLEMS && responseStream == null) {
+				ACRA.getErrorReporter().handleException(new RuntimeException("Empty response stream. Code: " + responseCode));
+			}					
+			if (responseCode == 200) {
+				cachingStream = cache.newCachingStream(request, connection, responseStream);
+			}
+			final boolean isDone = onServerResponse(request, cachingStream != null ? cachingStream : responseStream, connection, timeInMs);
+			if (cachingStream != null && isDone) {
+				cachingStream.commit();
+			}
+			
+			// Release the connection for the next request
+			StreamUtils.consume(rawStream);
+			if (responseStream != null) {
+				request.setByteCounts(responseStream.getEncodedCount(), responseStream.getDecodedCount());
+			}
+			return isDone;
+
+		} catch (Exception exception) {
+			final InputStream errorStream = connection != null ? connection.getErrorStream() : null;
+			final boolean isDone;
+			if (request.isCancelled()) {
+				// Aborted on purpose, the worker resends its followers.
+				isDone = true;
+			} else if (request.getRemainingTime() <= 0) {
+				publishResult(ERROR, request, new SocketTimeoutException("Deadline exceeded"));
+				isDone = true;
+			} else if (exception instanceof CircuitOpenException) {
+				// No point in trying before a server recovers.
+				publishResult(ERROR, request, exception);
+				isDone = true;
+			} else if (exception instanceof ConnectException) {
+				recordServerHealth(request, true, timeInMs);
+				// Server is down.
+				isDone = rotateAddress(request);
+			} else if (exception instanceof UnknownHostException || exception instanceof SocketTimeoutException) {
+				if (exception instanceof SocketTimeoutException) {
+					recordServerHealth(request, true, timeInMs);
+					if (request.getServerAddress() != null) {
+						RttEstimator.getInstance().recordTimeout(request.getServerAddress());
+					}
+				}
+				// Internet connection is down
+				isDone = onNetworkError(request, exception, errorStream);
+			} else {
+				// Don't know why it's here
+				isDone = onNetworkError(request, exception, errorStream);
+			}
+			StreamUtils.closeQuietly(rawStream);
+			StreamUtils.closeQuietly(errorStream);
+			if (connection != null) {
+				connection.disconnect();
+			}
+			return isDone;
+			
+		} finally {
+			if (cachingStream != null) {
+				cachingStream.abort();
+			}
+			// Gives the Inflater back to the pool.
+			StreamUtils.closeQuietly(responseStream);
+			if (watchdog != null) {
+				watchdog.cancel(false);
+			}
+			request.setActiveConnection(null);
+		}
+	}
+
+	/**
+	 * @return true if the request uploads a body
+	 */
+	private static boolean isBodySent(Request request) {
+		final String method = request.getRequestMethod();
+		return !(method.equals("DELETE") || method.equals("GET")) && request.hasBody();
+	}
+
+	/**
+	 * @return the timeout to set on a connection, never past the deadline
+	 */
+	private static int getTimeout(int timeout, long remainingTime) {
+		final long capped = timeout > 0 ? Math.min(timeout, remainingTime) : remainingTime;
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE, capped));
+	}
+
+	/**
+	 * @return the delay in ms asked by the Retry-After header, or -1
+	 */
+	private static long getRetryAfter(HttpURLConnection connection) {
+		final String retryAfter = connection.getHeaderField("Retry-After");
+		if (retryAfter == null) {
+			return -1;
+		}
+		try {
+			return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+		} catch (NumberFormatException e) {
+			final long date = connection.getHeaderFieldDate("Retry-After", -1);
+			return date > 0 ? Math.max(0, date - System.currentTimeMillis()) : -1;
+		}
+	}
+
+	/**
+	 * Feeds the outcome of an attempt to the address selection of the
+	 * request's UrlAddress.
+	 */
+	private void recordServerHealth(Request request, boolean isFailure, long startTimeInMs) {
+		final String address = request.getServerAddress();
+		if (address == null || request.getUrlAddress() == null) {
+			return;
+		}
+		if (isFailure) {
+			request.getUrlAddress().recordFailure(address);
+		} else {
+			request.getUrlAddress().recordSuccess(address, System.currentTimeMillis() - startTimeInMs);
+		}
+	}
+
+	private void publishResult(int retCode, Request request, Object result) {
+		if (request instanceof BatchRequest) {
+			publishBatchResult(retCode, (BatchRequest) request, result);
+			return;
+		}
+		if (retCode == DONE && result instanceof Response) {
+			MemoryCache.getInstance().put(request, (Response) result);
+		}
+		final ArrayList<Request> followers = mCoalescer.detach(request);
+		if (!request.isCancelled()) {
+			deliver(retCode, request, result);
+		}
+		for (Request follower : followers) {
+			if (follower.isCancelled()) {
+				continue;
+			}
+			if (retCode == DONE && result != null) {
+				deliver(retCode, follower, ((Response) result).copyFor(follower));
+			} else {
+				deliver(retCode, follower, result);
+			}
+		}
+	}
+
+	private void resetRequestAttemptCount(Request request) {
+		if (request.getPriority() == Downloader.DOWNLOADER_RETRY_LOW_PRIORITY) {
+			// Setting limit to low priority retry.
+			request.setAttemptCount(20);
+		} else {
+			if (request.getProtocol().equals("https")) {
+				request.setAttemptCount(2);
+			} else if (request.getProtocol().equals("http")) {
+				request.setAttemptCount(1);
+			}
+
+			if (request.getPriority() == Downloader.DOWNLOADER_HIGH_PRIORITY) {
+				request.setAttemptCount(request.getAttemptCount() * 3);
+			}
+		}
+	}
+
+	private boolean onServerResponse(Request request, InputStream responseStream, HttpURLConnection connection, long timeInMs) throws ResponseException {
+		mIsConnected = true;
+		if (request.getUrlAddress().shouldRotateWithCode(request.getResponseCode())) {
+			UBLogs.logResponse(request, connection, null, timeInMs);
+			
+			// This error code means we should try another server.	
+			return rotateAddress(request);
+		} else {
+			// Everything looks good here. The response can still have an error
+			// code,
+			// but it is handled by the server, so we consider it DONE.
+			final Response response = Response.create(request, responseStream, connection);
+			UBLogs.logResponse(request, connection, response, timeInMs);
+			publishResult(DONE, request, response);
+			return true;
+		}
+	}
+
+	private boolean onNetworkError(Request request, Exception exception, InputStream stream) {
+		request.setAttemptCount(request.getAttemptCount() - 1);
+		
+		if (stream != null) {
+			UBLogs.addLine("Error stream: " + StreamUtils.streamToString(stream));
+		}
+		
+		if (Downloader.REPORT_NETWORK_PROBLEMS) {
+			if (!(exception instanceof MalformedURLException ||
+				  exception instanceof UnknownHostException  ||
+				  exception instanceof SocketTimeoutException)) {
+				ACRA.getErrorReporter().handleException(exception);
+			} else 
+			if (!(exception instanceof MalformedURLException)) {
+				UBLogs.addLine("Network Error: " + exception);
+			}
+		}
+				
+		if (request.getAttemptCount() <= 0) {
+			mIsConnected = false;
+			publishResult(ERROR, request, exception);
+			return true;
+		}
+		return false;
+	}
+
+	private boolean onNetworkError(Request request) {
+		return onNetworkError(request, null, null);
+	}
+
+	private boolean rotateAddress(Request request) {
+		request.getUrlAddress().rotateAddress();
+		request.setRotationCount(request.getRotationCount() - 1);
+		if (request.getRotationCount() == 0) {
+			// Actually we've already tried all of our servers,
+			// so remove this download item and publish a little error.
+			publishResult(ERROR, request, new Exception("Rotate the server as much as we could"));
+			return true;
+		} else {
+			// We still have some servers to try, so let's use the next
+			// one and see if it works any better for our current download item.
+			// WTF: We need to send SSH requests twice because of some pipe
+			// errors.
+			resetRequestAttemptCount(request);
+			request.setRetryDelay(0);
+			return false;
+		}
+	}
+	
+	/**
+	 * Splits the result of a batch into one result per batched request.
+	 */
+	private void publishBatchResult(int retCode, BatchRequest batch, Object result) {
+		synchronized (mOpenBatches) {
+			if (mOpenBatches.get(batch.getUrlAddress()) == batch) {
+				mOpenBatches.remove(batch.getUrlAddress());
+			}
+		}
+		for (Request part : batch.getParts()) {
+			if (retCode == DONE && result != null) {
+				try {
+					publishResult(DONE, part, batch.getPartResponse(part, (Response) result));
+				} catch (ResponseException e) {
+					publishResult(ERROR, part, e);
+				}
+			} else {
+				publishResult(retCode, part, result);
+			}
+		}
+	}
+
+	/**
+	 * Calls the right listener method for a result. Must be called on the UI
+	 * thread.
+	 */
+	static void notifyListener(OnDownloadListener defaultListener, int retCode, Request request, Object result) {
+		OnDownloadListener listener = request != null ? request.getListener() : null;
+		if (listener == null) {
+			listener = defaultListener;
+		}
+		if (listener == null) {
+			return;
+		}
+		if (retCode == PRE_LOAD) {
+			
+			// Handle pre load
+			listener.onPreLoad(request.getType());
+			
+		} else if (retCode == ERROR) {
+			
+			// Handle error
+			if (request != null) {
+				listener.onError(request.getType(), request, (Exception) result);
+			} else {
+				listener.onError(-1, null, null);
+			}
+			
+		} else if (retCode == DONE) {
+			
+			// Handle success
+			final Response response = (Response) result;
+			if (response != null) {
+				listener.onLoad(response);
+			} else {
+				listener.onError(request.getType(), request, null);
+			}
+		}
+	}
+}
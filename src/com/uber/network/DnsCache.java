@@ -0,0 +1,124 @@
+/**
+    UberAndroidNetwork: A JSON/XML network abstraction layer
+    Copyright (c) 2011 by Jordan Bonnet, Uber Technologies
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+*/
+
+package com.uber.network;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Looks host names up ahead of the first requests. Connections resolve host
+ * names on their own, so that cookies, redirects, TLS and every address of a
+ * host keep working; prefetching only warms the resolver cache of the
+ * platform, off the path of the requests. A host is looked up again once its
+ * last lookup is older than the TTL.
+ */
+public class DnsCache {
+
+	public static final long DEFAULT_TTL_MS = 60 * 1000;
+
+	private static DnsCache sInstance;
+
+	private final HashMap<String, Long> mLookedUpAt = new HashMap<String, Long>();
+	private long mTtlMs = DEFAULT_TTL_MS;
+	private int mLookupCount = 0;
+	private int mFailureCount = 0;
+
+	public static synchronized DnsCache getInstance() {
+		if (sInstance == null) {
+			sInstance = new DnsCache();
+		}
+		return sInstance;
+	}
+
+	private DnsCache() {
+	}
+
+	public synchronized void setTtl(long ttlMs) {
+		mTtlMs = ttlMs;
+	}
+
+	/**
+	 * Resolves the hosts of the UrlAddress that haven't been looked up within
+	 * the TTL on a background thread, so the first requests don't have to wait
+	 * for the resolver.
+	 */
+	public void prefetch(UrlAddress urlAddress) {
+		final ArrayList<String> hosts = new ArrayList<String>();
+		synchronized (this) {
+			final long now = System.currentTimeMillis();
+			for (String host : urlAddress.getHosts()) {
+				final Long lookedUpAt = mLookedUpAt.get(host);
+				if (lookedUpAt == null || now - lookedUpAt >= mTtlMs) {
+					mLookedUpAt.put(host, now);
+					hosts.add(host);
+				}
+			}
+		}
+		if (hosts.isEmpty()) {
+			return;
+		}
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (String host : hosts) {
+					lookUp(host);
+				}
+			}
+		}, "DnsCache-prefetch");
+		thread.start();
+	}
+
+	private void lookUp(String host) {
+		try {
+			InetAddress.getAllByName(host);
+			synchronized (this) {
+				mLookupCount++;
+			}
+		} catch (UnknownHostException e) {
+			synchronized (this) {
+				mLookupCount++;
+				mFailureCount++;
+				// Try again on the next prefetch.
+				mLookedUpAt.remove(host);
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		mLookedUpAt.clear();
+	}
+
+	public synchronized int getLookupCount() {
+		return mLookupCount;
+	}
+
+	/**
+	 * @return the number of lookups that failed
+	 */
+	public synchronized int getFailureCount() {
+		return mFailureCount;
+	}
+}
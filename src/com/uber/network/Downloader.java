@@ -23,50 +23,48 @@
 
 package com.uber.network;
 
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.ConnectException;
 import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.Proxy;
-import java.net.SocketTimeoutException;
-import java.net.URL;
-import java.net.UnknownHostException;
 import java.util.HashMap;
-import java.util.Vector;
-import java.util.zip.GZIPInputStream;
-
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-
-import org.acra.ACRA;
 
 import android.os.AsyncTask;
 import android.os.Bundle;
 
-import com.uber.utils.StreamUtils;
-import com.uber.utils.UBLogs;
-
+/**
+ * One-shot downloader: it runs the requests added to it, then finishes once
+ * it has been idle for a moment, after which a new instance is needed. The
+ * {@link NetworkEngine} stays alive for the whole app session instead.
+ */
 public class Downloader extends AsyncTask<Object, Object, Object> {
 
-	private static final int DONE = 0;
-	private static final int PRE_LOAD = 1;
-	private static final int ERROR = 2;
-
 	public final static int DOWNLOADER_NORMAL_PRIORITY = 0;
 	public final static int DOWNLOADER_RETRY_LOW_PRIORITY = 1;
 	public final static int DOWNLOADER_HIGH_PRIORITY = 2;
 
 	public final static boolean REPORT_NETWORK_PROBLEMS = true;
+
+	// How long an idle task waits for a follow-up request before finishing.
+	private static final long IDLE_TIMEOUT_MS = 200;
 	
-	private boolean mIsConnected = true;
-	private boolean mIsProgressUpdated = false;
+	private final Object mProgressLock = new Object();
+	private int mPendingUpdates = 0;
 	private OnDownloadListener mDownloadListener = null;
-	private final Vector<Request> mRequestQueue = new Vector<Request>();
-	private HttpURLConnection mConnection = null;
-	private Bundle headerParams;
+	private int mMaxConcurrency = 1;
+	private final Dispatcher mDispatcher = new Dispatcher() {
+		@Override
+		protected void deliver(int retCode, Request request, Object result) {
+			if (retCode != Dispatcher.PRE_LOAD) {
+				synchronized (mProgressLock) {
+					mPendingUpdates++;
+				}
+			}
+			publishProgress(retCode, request, result);
+		}
+
+		@Override
+		protected boolean isStopped() {
+			return isCancelled();
+		}
+	};
 
 	public Downloader() {
 		super();
@@ -74,13 +72,48 @@ public class Downloader extends AsyncTask<Object, Object, Object> {
 
 	public Downloader(HttpURLConnection connection) {
 		super();
-		mConnection = connection;
+		mDispatcher.setConnection(connection);
 	}
 
 	public void setOnDownloadListener(OnDownloadListener listener) {
 		mDownloadListener = listener;
 	}
 
+	/**
+	 * Lets the downloader run several requests at the same time. Must be
+	 * called before the first request is added.
+	 * 
+	 * @param maxConcurrency the total number of requests in flight
+	 * @param maxPerHost the number of requests in flight to the same host, or
+	 *            0 for no limit other than maxConcurrency
+	 */
+	public void setMaxConcurrency(int maxConcurrency, int maxPerHost) {
+		mMaxConcurrency = Math.max(1, maxConcurrency);
+		mDispatcher.setMaxPerHost(maxPerHost);
+	}
+
+	/**
+	 * When enabled, which is the default, a GET or HEAD request identical to
+	 * one already in flight does not hit the network: it gets a copy of the
+	 * same response once it arrives.
+	 */
+	public void setCoalescingEnabled(boolean isCoalescingEnabled) {
+		mDispatcher.setCoalescingEnabled(isCoalescingEnabled);
+	}
+
+	/**
+	 * Enables batching: POST requests marked with Request.setBatchable() that
+	 * are added within windowMs of each other for the same UrlAddress are
+	 * sent together to batchPath. See BatchRequest for the envelope format.
+	 * 
+	 * @param batchPath the path of the batch endpoint, or null to disable
+	 *            batching
+	 * @param windowMs how long the first request of a batch waits for others
+	 */
+	public void setBatching(String batchPath, long windowMs) {
+		mDispatcher.setBatching(batchPath, windowMs);
+	}
+
 	public void addDownload(UrlAddress urlAddress, int type, int responseType, int priority) {
 		addDownload(urlAddress, type, responseType, priority, null);
 	}
@@ -119,344 +152,138 @@ public class Downloader extends AsyncTask<Object, Object, Object> {
 		}
 	}
 
+
 	private void addDownload(Request request) {
-		if (mIsConnected) {
-			mRequestQueue.add(request);
+		// A finished task doesn't run requests anymore, not even the ones
+		// the memory cache could answer.
+		if (mDispatcher.isConnected() && getStatus() != AsyncTask.Status.FINISHED && !mDispatcher.getQueue().isClosed()) {
+			mDispatcher.enqueue(request);
 			if (getStatus() == AsyncTask.Status.PENDING) {
-				mIsProgressUpdated = false;
 				execute();
 			}
 		}
 	}
 
-	private void trustCertificate() {
-		try {
-			final SSLContext sslContext = SSLContext.getInstance("TLS");
-			sslContext.init(null, new TrustManager[] { new UberTrustManager() }, new java.security.SecureRandom());
-			HttpsURLConnection.setDefaultSSLSocketFactory(sslContext.getSocketFactory());
-		} catch (Exception e) {
-			// Pretty fucked here
-			ACRA.getErrorReporter().handleSilentException(e);
-		}
+	/**
+	 * Enables hedging of DOWNLOADER_HIGH_PRIORITY requests that are idempotent
+	 * (GET, HEAD or Request.setIdempotent()) and have more than one address:
+	 * if the server hasn't started answering after the given percentile of
+	 * recent latencies, a duplicate goes to another address and the first
+	 * answer wins.
+	 * 
+	 * @param percentile between 0 and 1, e.g. 0.95, or 0 to disable hedging
+	 * @param minDelayMs the shortest delay before hedging
+	 */
+	public void setHedging(double percentile, long minDelayMs) {
+		mDispatcher.setHedging(percentile, minDelayMs);
 	}
 
 	/**
-	 * This is a *smart* helper method which, given a request, manages to create
-	 * the right kind of http connection.
-	 * 
-	 * @param request
-	 * @return the connection object
-	 * @throws IOException
+	 * Cancels a request: it is taken out of the queue, or its transfer is
+	 * aborted if it is in flight. Its listener won't be called.
 	 */
-	private HttpURLConnection connect(Request request) throws IOException {
-		if (mConnection != null) {
-			return mConnection;
-			
-		} else {
-			
-			HttpURLConnection connection = null;
-		
-			// Get url
-			final UrlAddress urlAddress = request.getUrlAddress();
-			if (urlAddress != null) {
-				
-				// Get protocol
-				URL url = new URL(urlAddress.getAddress() + request.getPath());
-								
-				final String protocol = url.getProtocol();
-				
-				// Handle both protocols
-				if (protocol.equals("http")) {
-					connection = (HttpURLConnection) url.openConnection();
-				} else if (protocol.equals("https")) {
-					trustCertificate();
-					final HttpsURLConnection sslConnection = (HttpsURLConnection) url.openConnection(Proxy.NO_PROXY);
-					sslConnection.setHostnameVerifier(new UberHostnameVerifier());
-					connection = sslConnection;
-				}
-				
-				if (connection != null) {
-					
-					// Add custom headers
-					if (headerParams != null) {
-						for (String key : headerParams.keySet()) {
-							final Object param = headerParams.get(key);
-							if (param != null) {
-								if (param instanceof String) {
-									connection.addRequestProperty(key, (String) param);
-								} else {
-									connection.addRequestProperty(key, param.toString());
-								}
-							}
-						}	
-					}
-					
-					
-					// Set method
-					final String method = request.getRequestMethod();
-					connection.setRequestMethod(method);
-					
-					// Set content type
-					if (request.getContentType() != null) {
-						connection.setRequestProperty("Content-Type", request.getContentType());
-					}
-					
-					// Set content length
-					int contentLength = request.getBody() == null ? 0 : request.getBody().length;
-					connection.setRequestProperty("Content-length", String.valueOf(contentLength));
-					
-					// Handle if has body or not
-					if (!(method.equals("DELETE") || method.equals("GET")) && request.getBody() != null) {
-						connection.setDoOutput(true);
-						connection.setDoInput(true);
-						final DataOutputStream output = new DataOutputStream(connection.getOutputStream());
-						output.write(request.getBody());
-					} else {
-						connection.connect();
-					}
-				}
-			}
-			return connection;
-		}
+	public void cancelRequest(Request request) {
+		mDispatcher.cancelRequest(request);
+	}
+
+	/**
+	 * Cancels every request with the given tag.
+	 */
+	public void cancelRequests(Object tag) {
+		mDispatcher.cancelRequests(tag);
+	}
+
+	/**
+	 * Cancels every request, aborting the transfers in flight, then the task
+	 * itself. Unlike cancel(), it doesn't wait for the current requests to
+	 * finish.
+	 */
+	public void cancelAll() {
+		mDispatcher.cancelAll();
+		cancel(true);
 	}
 
 	public void setHeaderParams(Bundle headerParams) {
-		this.headerParams = headerParams;
+		mDispatcher.setHeaderParams(headerParams);
 	}
 
 	/**
-	 * This is the core task of the downloader. 1. Pop the next download item 2.
-	 * Create the appropriate connection 3. Handle the response 4. Loop back
-	 * until there aren't any items left
+	 * This is the core task of the downloader. 1. Wait for the next download
+	 * item 2. Create the appropriate connection 3. Handle the response 4. Loop
+	 * back until there aren't any items left. Extra workers are started when
+	 * more than one request may be in flight.
 	 */
 	@Override
 	protected Object doInBackground(Object... params) {
-		// Algorithm
-		while (!isCancelled()) {
-			try {
-				Thread.sleep(200);
-			} catch (InterruptedException e) {
-				// Nothing to do
-			}
-			if (mRequestQueue.isEmpty()) {
-				if (!mIsProgressUpdated) {
-					// Don't kill the task until the UI has been updated.
-					continue;
-				} else {
-					// Exit
-					break;
+		final Thread[] workers = new Thread[mMaxConcurrency - 1];
+		for (int i = 0; i < workers.length; ++i) {
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					mDispatcher.runWorker(-1);
 				}
-			} else {
-				final Request request = mRequestQueue.get(0);
-				if (request.isFirstAttempt()) {
-					resetRequestAttemptCount(request);
-					publishProgress(PRE_LOAD, request);
-					request.setFirstAttempt(false);
-				}
-				
-				// Logs
-				long timeInMs = System.currentTimeMillis();
-				
-				if (!request.getPath().equals("/mobile_logs")) {
-					UBLogs.logRequest(request);
-				} else {
-					UBLogs.addLine("MOBILE LOGS \n");
-				}
-				
-				HttpURLConnection connection = null;
-				try {	
-					
-					mIsProgressUpdated = false;
-
-					connection = connect(request);
-					
-					if (connection == null) {
-						onNetworkError(request);
-						return null;
-					}
-					
-					request.setResponseCode(connection.getResponseCode());
-					
-					InputStream responseStream;
-					
-					final int responseCode = request.getResponseCode();
-					if (responseCode < 0) {
-						// DON'T ASK! Legacy...
-						continue;
-					} else
-					if (responseCode == 200) {
-						responseStream = connection.getInputStream();
-					} else
-					if (responseCode > 500) {
-						UBLogs.addLine("Response code: " + responseCode);
-						publishProgress(ERROR, request, null);
-						continue;
-					} else {
-						responseStream = connection.getErrorStream();
-					}
-					
-					final String contentEnconding = connection.getContentEncoding();
-					if (contentEnconding != null && contentEnconding.equalsIgnoreCase("gzip")) {
-						responseStream = new GZIPInputStream(responseStream);
-					}
-					
-					if (REPORT_NETWORK_PROBLEMS && responseStream == null) {
-						ACRA.getErrorReporter().handleException(new RuntimeException("Empty response stream. Code: " + responseCode));
-					}					
-					onServerResponse(request, responseStream, connection, timeInMs);
-					
-
-				} catch (Exception exception) {
-					final InputStream errorStream = connection != null ? connection.getErrorStream() : null;
-					if (exception instanceof ConnectException) {
-						// Server is down.
-						rotateAddress(request);
-					} else if (exception instanceof UnknownHostException || exception instanceof SocketTimeoutException) {
-						// Internet connection is down
-						onNetworkError(request, exception, errorStream);
-					} else {
-						// Don't know why it's here
-						onNetworkError(request, exception, errorStream);
-					}
-				}
-			}
+			}, "Downloader-worker-" + (i + 1));
+			workers[i].start();
 		}
-		return null;
-	}
-
-	private void resetRequestAttemptCount(Request request) {
-		if (request.getPriority() == DOWNLOADER_RETRY_LOW_PRIORITY) {
-			// Setting limit to low priority retry.
-			request.setAttemptCount(20);
-		} else {
-			if (request.getProtocol().equals("https")) {
-				request.setAttemptCount(2);
-			} else if (request.getProtocol().equals("http")) {
-				request.setAttemptCount(1);
+		
+		// Algorithm
+		final RequestQueue requestQueue = mDispatcher.getQueue();
+		while (!isCancelled()) {
+			if (!mDispatcher.runWorker(IDLE_TIMEOUT_MS)) {
+				break;
 			}
-
-			if (request.getPriority() == DOWNLOADER_HIGH_PRIORITY) {
-				request.setAttemptCount(request.getAttemptCount() * 3);
+			// Don't kill the task until the UI has been updated.
+			if (!awaitProgressUpdates() || requestQueue.isIdle()) {
+				// Exit
+				break;
 			}
 		}
-	}
-
-	private void onServerResponse(Request request, InputStream responseStream, HttpURLConnection connection, long timeInMs) throws ResponseException {
-		mIsConnected = true;
-		if (request.getUrlAddress().shouldRotateWithCode(request.getResponseCode())) {
-			UBLogs.logResponse(request, connection, null, timeInMs);
-			
-			// This error code means we should try another server.	
-			rotateAddress(request);
-		} else {
-			// Everything looks good here. The response can still have an error
-			// code,
-			// but it is handled by the server, so we consider it DONE.
-			final Response response = Response.create(request, responseStream, connection);
-			UBLogs.logResponse(request, connection, response, timeInMs);
-			mRequestQueue.remove(0);
-			publishProgress(DONE, request, response);
-		}
-	}
-
-	private void onNetworkError(Request request, Exception exception, InputStream stream) {
-		request.setAttemptCount(request.getAttemptCount() - 1);
-		
-		if (stream != null) {
-			UBLogs.addLine("Error stream: " + StreamUtils.streamToString(stream));
-		}
 		
-		if (REPORT_NETWORK_PROBLEMS) {
-			if (!(exception instanceof MalformedURLException ||
-				  exception instanceof UnknownHostException  ||
-				  exception instanceof SocketTimeoutException)) {
-				ACRA.getErrorReporter().handleException(exception);
-			} else 
-			if (!(exception instanceof MalformedURLException)) {
-				UBLogs.addLine("Network Error: " + exception);
+		requestQueue.close();
+		for (Thread worker : workers) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				worker.interrupt();
 			}
 		}
-				
-		if (request.getAttemptCount() <= 0) {
-			mIsConnected = false;
-			mRequestQueue.remove(0);
-			publishProgress(ERROR, request, exception);
-		}
-	}
-
-	private void onNetworkError(Request request) {
-		onNetworkError(request, null, null);
+		return null;
 	}
 
-	private void rotateAddress(Request request) {
-		request.getUrlAddress().rotateAddress();
-		request.setRotationCount(request.getRotationCount() - 1);
-		if (request.getRotationCount() == 0) {
-			// Actually we've already tried all of our servers,
-			// so remove this download item and publish a little error.
-			publishProgress(ERROR, request, new Exception("Rotate the server as much as we could"));
-			mRequestQueue.remove(0);
-		} else {
-			// We still have some servers to try, so let's use the next
-			// one and see if it works any better for our current download item.
-			// WTF: We need to send SSH requests twice because of some pipe
-			// errors.
-			resetRequestAttemptCount(request);
-		}
-	}
-	
-	private OnDownloadListener getListenerFromRequest(Request request) {
-		OnDownloadListener listener = request.getListener();
-		if (listener == null) {
-			listener = this.mDownloadListener;
+	/**
+	 * Blocks until every result published so far has been delivered to the
+	 * listeners on the UI thread.
+	 * 
+	 * @return false if the task got cancelled or interrupted while waiting
+	 */
+	private boolean awaitProgressUpdates() {
+		synchronized (mProgressLock) {
+			while (mPendingUpdates > 0) {
+				if (isCancelled()) {
+					// Cancelled tasks never receive their progress updates.
+					return false;
+				}
+				try {
+					mProgressLock.wait(IDLE_TIMEOUT_MS);
+				} catch (InterruptedException e) {
+					return false;
+				}
+			}
 		}
-		return listener;
+		return true;
 	}
 
 	@Override
 	protected void onProgressUpdate(Object... params) {
 		if (params.length >= 2) {
 			final int retCode = ((Integer) params[0]).intValue();
-			if (retCode == PRE_LOAD) {
-				
-				// Handle pre load
-				final Request request = (Request) params[1];
-				final OnDownloadListener listener = getListenerFromRequest(request);
-				if (listener != null) {
-					listener.onPreLoad(request.getType());
-				}
-				
-			} else if (retCode == ERROR) {
-				
-				// Handle error
-				final Request request = (Request) params[1];
-				final OnDownloadListener listener = getListenerFromRequest(request);
-				if (listener != null) {
-					if (request != null) {
-						final Exception exception = (Exception) params[2];
-						listener.onError(request.getType(), request, exception);
-					} else {
-						listener.onError(-1, null, null);
-					}
-				}
-				
-			} else if (retCode == DONE) {
-				
-				// Handle success
-				final Request request = (Request) params[1];
-				final OnDownloadListener listener = getListenerFromRequest(request);
-				if (listener != null) {
-					final Response response = (Response) params[2];
-					if (response != null) {
-						listener.onLoad(response);
-					} else {
-						listener.onError(request.getType(), request, null);
-					}
-				}
-			}
+			Dispatcher.notifyListener(mDownloadListener, retCode, (Request) params[1], params.length > 2 ? params[2] : null);
 
-			if (retCode != PRE_LOAD) {
-				mIsProgressUpdated = true;
+			if (retCode != Dispatcher.PRE_LOAD) {
+				synchronized (mProgressLock) {
+					mPendingUpdates--;
+					mProgressLock.notifyAll();
+				}
 			}
 		}
 	}
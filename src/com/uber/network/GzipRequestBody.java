@@ -0,0 +1,153 @@
+/**
+    UberAndroidNetwork: A JSON/XML network abstraction layer
+    Copyright (c) 2011 by Jordan Bonnet, Uber Technologies
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+*/
+
+package com.uber.network;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Gzips another body on the fly. GZIPOutputStream allocates a new Deflater,
+ * and its native buffers, for every stream, so the gzip framing is written
+ * here around a Deflater taken from a small pool.
+ */
+class GzipRequestBody extends RequestBody {
+
+	private static final int MAX_POOLED_DEFLATERS = 4;
+	private static final int BUFFER_SIZE = 8192;
+	private static final byte[] GZIP_HEADER = new byte[] {
+		(byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+	};
+
+	private static final LinkedList<Deflater> sDeflaters = new LinkedList<Deflater>();
+
+	private final RequestBody mBody;
+
+	GzipRequestBody(RequestBody body) {
+		mBody = body;
+	}
+
+	/**
+	 * @return true if the request or its UrlAddress opted in and the body is
+	 *         large enough, or of unknown size
+	 */
+	static boolean shouldCompress(Request request, RequestBody body) {
+		final UrlAddress urlAddress = request.getUrlAddress();
+		final boolean isAddressEnabled = urlAddress != null && urlAddress.isCompressionEnabled();
+		if (!request.isCompressionEnabled() && !isAddressEnabled) {
+			return false;
+		}
+		final int minSize = urlAddress != null ? urlAddress.getCompressionMinSize() : UrlAddress.DEFAULT_COMPRESSION_MIN_SIZE;
+		final long contentLength = body.getContentLength();
+		return contentLength < 0 || contentLength >= minSize;
+	}
+
+	@Override
+	public long getContentLength() {
+		// Only known once compressed, the body goes out in chunks.
+		return -1;
+	}
+
+	@Override
+	public void writeTo(OutputStream output) throws IOException {
+		final Deflater deflater = obtainDeflater();
+		try {
+			output.write(GZIP_HEADER);
+			final DeflaterOutputStream deflaterStream = new DeflaterOutputStream(output, deflater, BUFFER_SIZE);
+			final CrcOutputStream crcStream = new CrcOutputStream(deflaterStream);
+			mBody.writeTo(crcStream);
+			deflaterStream.finish();
+			writeInt(output, (int) crcStream.mCrc.getValue());
+			writeInt(output, (int) crcStream.mSize);
+		} finally {
+			recycleDeflater(deflater);
+		}
+	}
+
+	private static void writeInt(OutputStream output, int value) throws IOException {
+		// Little endian, as gzip wants it.
+		output.write(value & 0xff);
+		output.write((value >> 8) & 0xff);
+		output.write((value >> 16) & 0xff);
+		output.write((value >> 24) & 0xff);
+	}
+
+	private static Deflater obtainDeflater() {
+		synchronized (sDeflaters) {
+			if (!sDeflaters.isEmpty()) {
+				return sDeflaters.removeFirst();
+			}
+		}
+		// Raw deflate, the gzip header and trailer are ours.
+		return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	}
+
+	private static void recycleDeflater(Deflater deflater) {
+		deflater.reset();
+		synchronized (sDeflaters) {
+			if (sDeflaters.size() < MAX_POOLED_DEFLATERS) {
+				sDeflaters.addFirst(deflater);
+				return;
+			}
+		}
+		deflater.end();
+	}
+
+	/**
+	 * Keeps the CRC and size of the uncompressed data for the gzip trailer.
+	 */
+	private static class CrcOutputStream extends FilterOutputStream {
+
+		private final CRC32 mCrc = new CRC32();
+		private long mSize = 0;
+
+		CrcOutputStream(OutputStream output) {
+			super(output);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			mCrc.update(b);
+			mSize++;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int count) throws IOException {
+			out.write(buffer, offset, count);
+			mCrc.update(buffer, offset, count);
+			mSize += count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			// The body doesn't own the connection stream.
+			flush();
+		}
+	}
+}
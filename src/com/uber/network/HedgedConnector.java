@@ -0,0 +1,230 @@
+/**
+    UberAndroidNetwork: A JSON/XML network abstraction layer
+    Copyright (c) 2011 by Jordan Bonnet, Uber Technologies
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+*/
+
+package com.uber.network;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.uber.utils.UBLogs;
+
+/**
+ * Sends a request to a first server and, if it hasn't started answering
+ * after a delay, sends a duplicate to a second one. The first connection to
+ * get a response code wins and the other one is disconnected. Only meant
+ * for idempotent requests, since both may reach a server.
+ */
+class HedgedConnector {
+
+	public interface Opener {
+		/**
+		 * Connects the request to the given server, without reading the
+		 * response.
+		 */
+		HttpURLConnection open(String address) throws IOException;
+	}
+
+	private static final ExecutorService sExecutor = Executors.newCachedThreadPool();
+
+	private final Object mLock = new Object();
+	private final Opener mOpener;
+
+	private class Attempt implements Runnable {
+		final String address;
+		HttpURLConnection connection;
+		Throwable error;
+		boolean isDone;
+		boolean isAbandoned;
+
+		Attempt(String address) {
+			this.address = address;
+		}
+
+		@Override
+		public void run() {
+			Throwable failure = null;
+			try {
+				final HttpURLConnection opened = mOpener.open(address);
+				synchronized (mLock) {
+					// Known before blocking, so that abandon() can disconnect it.
+					connection = opened;
+					if (isAbandoned) {
+						return;
+					}
+				}
+				if (opened != null) {
+					// Wait for the response to start
+					opened.getResponseCode();
+				}
+			} catch (Throwable e) {
+				failure = e;
+			} finally {
+				synchronized (mLock) {
+					error = failure;
+					isDone = true;
+					if ((isAbandoned || failure != null) && connection != null) {
+						connection.disconnect();
+					}
+					mLock.notifyAll();
+				}
+			}
+		}
+
+		boolean isSuccessful() {
+			return isDone && connection != null && error == null;
+		}
+
+		/**
+		 * Gives up on this attempt and releases its connection.
+		 */
+		void abandon() {
+			isAbandoned = true;
+			if (connection != null) {
+				connection.disconnect();
+			}
+		}
+	}
+
+	private Attempt mWinner;
+	private Attempt mPrimary;
+	private Attempt mSecondary;
+	private boolean mIsAborted = false;
+
+	public HedgedConnector(Opener opener) {
+		mOpener = opener;
+	}
+
+	/**
+	 * @param timeoutMs how long to wait for either attempt in all
+	 * @return the connection that started answering first, with its response
+	 *         code already read
+	 * @throws IOException the error of the primary attempt if both failed,
+	 *             which is rethrown as is if unchecked
+	 */
+	public HttpURLConnection connect(String primaryAddress, String secondaryAddress, long hedgeDelayMs, long timeoutMs) throws IOException {
+		final Attempt primary = new Attempt(primaryAddress);
+		final Attempt secondary = new Attempt(secondaryAddress);
+		synchronized (mLock) {
+			mPrimary = primary;
+			mSecondary = secondary;
+			if (mIsAborted) {
+				throw new InterruptedIOException("Aborted");
+			}
+		}
+		final long now = System.currentTimeMillis();
+		final long deadline = timeoutMs > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + timeoutMs;
+		sExecutor.execute(primary);
+		try {
+			synchronized (mLock) {
+				final long hedgeAt = Math.min(now + hedgeDelayMs, deadline);
+				long remaining = hedgeAt - System.currentTimeMillis();
+				while (!primary.isDone && !mIsAborted && remaining > 0) {
+					mLock.wait(remaining);
+					remaining = hedgeAt - System.currentTimeMillis();
+				}
+				checkAborted(deadline);
+				if (primary.isDone) {
+					// Failures are handled like any other attempt.
+					return finish(primary, null);
+				}
+			}
+			
+			UBLogs.addLine("Hedging request to " + secondaryAddress);
+			sExecutor.execute(secondary);
+			
+			synchronized (mLock) {
+				long remaining = deadline - System.currentTimeMillis();
+				while (!primary.isSuccessful() && !secondary.isSuccessful() && !(primary.isDone && secondary.isDone) && !mIsAborted && remaining > 0) {
+					mLock.wait(remaining);
+					remaining = deadline - System.currentTimeMillis();
+				}
+				checkAborted(deadline);
+				if (primary.isSuccessful() || !secondary.isSuccessful()) {
+					return finish(primary, secondary);
+				}
+				return finish(secondary, primary);
+			}
+		} catch (InterruptedException e) {
+			abort();
+			throw new InterruptedIOException("Interrupted while hedging");
+		}
+	}
+
+	/**
+	 * Gives up on both attempts, and makes connect() throw if it is still
+	 * waiting for them.
+	 */
+	public void abort() {
+		synchronized (mLock) {
+			mIsAborted = true;
+			if (mPrimary != null) {
+				mPrimary.abandon();
+				mSecondary.abandon();
+			}
+			mLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Abandons both attempts if the connector got aborted or the deadline
+	 * passed. Called with the lock held.
+	 */
+	private void checkAborted(long deadline) throws IOException {
+		if (mIsAborted) {
+			throw new InterruptedIOException("Aborted");
+		}
+		if (System.currentTimeMillis() >= deadline && !mPrimary.isSuccessful() && !mSecondary.isSuccessful() && !(mPrimary.isDone && mSecondary.isDone)) {
+			mPrimary.abandon();
+			mSecondary.abandon();
+			throw new SocketTimeoutException("Deadline exceeded while hedging");
+		}
+	}
+
+	/**
+	 * @return the server of the winning connection
+	 */
+	public String getWinnerAddress() {
+		return mWinner != null ? mWinner.address : null;
+	}
+
+	private HttpURLConnection finish(Attempt winner, Attempt loser) throws IOException {
+		if (loser != null) {
+			loser.abandon();
+		}
+		mWinner = winner;
+		if (winner.error instanceof IOException) {
+			throw (IOException) winner.error;
+		} else if (winner.error instanceof RuntimeException) {
+			throw (RuntimeException) winner.error;
+		} else if (winner.error instanceof Error) {
+			throw (Error) winner.error;
+		} else if (winner.error != null) {
+			throw new IOException(winner.error.toString());
+		}
+		return winner.connection;
+	}
+}
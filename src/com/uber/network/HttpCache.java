@@ -0,0 +1,579 @@
+/**
+    UberAndroidNetwork: A JSON/XML network abstraction layer
+    Copyright (c) 2011 by Jordan Bonnet, Uber Technologies
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+*/
+
+package com.uber.network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.uber.utils.StreamUtils;
+
+/**
+ * A disk cache of GET responses following the HTTP caching headers. Fresh
+ * responses, per Cache-Control max-age or Expires, are served without going
+ * to the network. Stale ones that carry an ETag or a Last-Modified date turn
+ * the next request into a conditional one, and a 304 answer is served from
+ * the cached body. Entries are evicted least recently used first once the
+ * cache is over its size.
+ * 
+ * Nothing is cached until {@link #install(File, long)} is called, usually
+ * with a folder of Context.getCacheDir().
+ */
+public class HttpCache {
+
+	private static final int VERSION = 1;
+	private static final String META_SUFFIX = ".meta";
+	private static final String BODY_SUFFIX = ".body";
+	private static final String TEMP_SUFFIX = ".tmp";
+	// Heuristic freshness of responses with only a Last-Modified date.
+	private static final long MAX_HEURISTIC_FRESHNESS_MS = 24 * 60 * 60 * 1000;
+
+	private static HttpCache sInstance;
+
+	/**
+	 * What is known about a cached response, without its body.
+	 */
+	static class Entry {
+		final String key;
+		final String url;
+		int responseCode;
+		long lastModified;
+		String etag;
+		String lastModifiedHeader;
+		long expiresAt;
+		long bodyLength;
+
+		Entry(String key, String url) {
+			this.key = key;
+			this.url = url;
+		}
+
+		boolean isFresh() {
+			return System.currentTimeMillis() < expiresAt;
+		}
+
+		boolean hasValidators() {
+			return etag != null || lastModifiedHeader != null;
+		}
+	}
+
+	private File mDirectory;
+	private long mMaxSize;
+	private long mSize = 0;
+	// Size on disk of each entry, least recently used first.
+	private final LinkedHashMap<String, Long> mEntrySizes = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private int mHitCount = 0;
+	private int mConditionalHitCount = 0;
+	private int mMissCount = 0;
+
+	public static synchronized HttpCache getInstance() {
+		if (sInstance == null) {
+			sInstance = new HttpCache();
+		}
+		return sInstance;
+	}
+
+	private HttpCache() {
+	}
+
+	/**
+	 * Enables the cache, keeping what a previous install left in the folder.
+	 * 
+	 * @param maxSize in bytes
+	 */
+	public synchronized void install(File directory, long maxSize) {
+		mDirectory = directory;
+		mMaxSize = maxSize;
+		mEntrySizes.clear();
+		mSize = 0;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			mDirectory = null;
+			return;
+		}
+		final File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		// Oldest first, so the least recently used entries get evicted first.
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				return Long.valueOf(lhs.lastModified()).compareTo(rhs.lastModified());
+			}
+		});
+		for (File file : files) {
+			final String name = file.getName();
+			if (name.endsWith(TEMP_SUFFIX)) {
+				file.delete();
+			} else if (name.endsWith(META_SUFFIX)) {
+				final String key = name.substring(0, name.length() - META_SUFFIX.length());
+				final long size = file.length() + getBodyFile(key).length();
+				mEntrySizes.put(key, size);
+				mSize += size;
+			}
+		}
+		trimToSize();
+	}
+
+	public synchronized boolean isInstalled() {
+		return mDirectory != null;
+	}
+
+	/**
+	 * Deletes every entry.
+	 */
+	public synchronized void clear() {
+		for (String key : mEntrySizes.keySet()) {
+			deleteFiles(key);
+		}
+		mEntrySizes.clear();
+		mSize = 0;
+	}
+
+	/**
+	 * @return the size of the cache on disk in bytes
+	 */
+	public synchronized long getSize() {
+		return mSize;
+	}
+
+	/**
+	 * @return the number of responses served without going to the network
+	 */
+	public synchronized int getHitCount() {
+		return mHitCount;
+	}
+
+	/**
+	 * @return the number of responses served after a 304 answer
+	 */
+	public synchronized int getConditionalHitCount() {
+		return mConditionalHitCount;
+	}
+
+	public synchronized int getMissCount() {
+		return mMissCount;
+	}
+
+	/**
+	 * @return true if the response to the request may come from or go to the
+	 *         cache
+	 */
+	synchronized boolean isCacheable(Request request) {
+		return mDirectory != null && "GET".equals(request.getRequestMethod()) && request.getUrlAddress() != null
+				&& !(request instanceof BatchRequest);
+	}
+
+	/**
+	 * @return the entry of the request, fresh or not, or null
+	 */
+	synchronized Entry get(Request request) {
+		if (!isCacheable(request)) {
+			return null;
+		}
+		final String url = getUrl(request);
+		final String key = getKey(url);
+		if (mEntrySizes.get(key) == null) {
+			mMissCount++;
+			return null;
+		}
+		final Entry entry = readEntry(key, url);
+		if (entry == null) {
+			remove(key);
+			mMissCount++;
+		}
+		return entry;
+	}
+
+	/**
+	 * Parses the cached body like a response from the network.
+	 * 
+	 * @param isConditional true if the server just answered 304
+	 * @return the response, or null if the cached body is gone
+	 */
+	Response createResponse(Request request, Entry entry, boolean isConditional) {
+		final InputStream body;
+		try {
+			body = new BufferedInputStream(new FileInputStream(getBodyFile(entry.key)));
+		} catch (IOException e) {
+			remove(entry.key);
+			return null;
+		}
+		try {
+			request.setResponseCode(entry.responseCode);
+			final Response response = Response.create(request, body, entry.responseCode, entry.lastModified);
+			synchronized (this) {
+				if (isConditional) {
+					mConditionalHitCount++;
+				} else {
+					mHitCount++;
+				}
+				// Marks the entry as recently used.
+				if (mEntrySizes.get(entry.key) != null) {
+					getMetaFile(entry.key).setLastModified(System.currentTimeMillis());
+				}
+			}
+			return response;
+		} catch (ResponseException e) {
+			remove(entry.key);
+			return null;
+		} finally {
+			StreamUtils.closeQuietly(body);
+		}
+	}
+
+	/**
+	 * Refreshes the entry with the headers of a 304 answer.
+	 */
+	synchronized void update(Entry entry, HttpURLConnection connection) {
+		final long expiresAt = getExpiresAt(connection);
+		if (expiresAt < 0) {
+			remove(entry.key);
+			return;
+		}
+		entry.expiresAt = expiresAt;
+		final String etag = connection.getHeaderField("ETag");
+		if (etag != null) {
+			entry.etag = etag;
+		}
+		final String lastModifiedHeader = connection.getHeaderField("Last-Modified");
+		if (lastModifiedHeader != null) {
+			entry.lastModifiedHeader = lastModifiedHeader;
+			entry.lastModified = connection.getLastModified();
+		}
+		writeEntry(entry);
+	}
+
+	/**
+	 * @return a stream copying the response body to the cache as it is read,
+	 *         or null if the response can't be cached
+	 */
+	synchronized CachingInputStream newCachingStream(Request request, HttpURLConnection connection, InputStream body) {
+		if (!isCacheable(request) || body == null) {
+			return null;
+		}
+		final String vary = connection.getHeaderField("Vary");
+		if (vary != null && !vary.trim().equalsIgnoreCase("Accept-Encoding")) {
+			// The body depends on request headers we don't keep track of.
+			return null;
+		}
+		final long expiresAt = getExpiresAt(connection);
+		final String etag = connection.getHeaderField("ETag");
+		final String lastModifiedHeader = connection.getHeaderField("Last-Modified");
+		if (expiresAt < 0 || (expiresAt <= System.currentTimeMillis() && etag == null && lastModifiedHeader == null)) {
+			// Not allowed, or useless since it could never be reused.
+			return null;
+		}
+		final String url = getUrl(request);
+		final Entry entry = new Entry(getKey(url), url);
+		entry.responseCode = request.getResponseCode();
+		entry.lastModified = connection.getLastModified();
+		entry.etag = etag;
+		entry.lastModifiedHeader = lastModifiedHeader;
+		entry.expiresAt = expiresAt;
+		try {
+			return new CachingInputStream(body, entry);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Copies what is read from a response body to a temporary file, which
+	 * becomes the cached body once the response has been read to the end.
+	 */
+	class CachingInputStream extends FilterInputStream {
+
+		private final Entry mEntry;
+		private final File mTempFile;
+		private final byte[] mSingleByte = new byte[1];
+		private OutputStream mOutput;
+		private long mLength = 0;
+		private boolean mIsComplete = false;
+
+		CachingInputStream(InputStream body, Entry entry) throws IOException {
+			super(body);
+			mEntry = entry;
+			mTempFile = new File(mDirectory, entry.key + BODY_SUFFIX + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+			mOutput = new BufferedOutputStream(new FileOutputStream(mTempFile));
+		}
+
+		@Override
+		public int read() throws IOException {
+			return read(mSingleByte, 0, 1) == -1 ? -1 : mSingleByte[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			final int read = in.read(buffer, offset, count);
+			if (read == -1) {
+				mIsComplete = true;
+			} else if (mOutput != null) {
+				try {
+					mOutput.write(buffer, offset, read);
+					mLength += read;
+					if (mLength > mMaxSize / 8) {
+						// Too big to be worth it.
+						abort();
+					}
+				} catch (IOException e) {
+					abort();
+				}
+			}
+			return read;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() {
+			// The connection stream is closed by the dispatcher.
+		}
+
+		/**
+		 * Reads the rest of the body and stores the response.
+		 */
+		void commit() {
+			if (mOutput == null) {
+				return;
+			}
+			try {
+				final byte[] buffer = new byte[0x1000];
+				while (!mIsComplete) {
+					read(buffer, 0, buffer.length);
+				}
+			} catch (IOException e) {
+				abort();
+				return;
+			}
+			if (mOutput == null) {
+				return;
+			}
+			try {
+				mOutput.close();
+				mOutput = null;
+				mEntry.bodyLength = mLength;
+				store(mEntry, mTempFile);
+			} catch (IOException e) {
+				abort();
+			}
+		}
+
+		/**
+		 * Drops what has been copied, unless it is already stored.
+		 */
+		void abort() {
+			if (mOutput != null) {
+				StreamUtils.closeQuietly(mOutput);
+				mOutput = null;
+				mTempFile.delete();
+			}
+		}
+	}
+
+	private synchronized void store(Entry entry, File bodyFile) {
+		if (mDirectory == null) {
+			bodyFile.delete();
+			return;
+		}
+		remove(entry.key);
+		if (!bodyFile.renameTo(getBodyFile(entry.key))) {
+			bodyFile.delete();
+			return;
+		}
+		writeEntry(entry);
+	}
+
+	private void writeEntry(Entry entry) {
+		final File metaFile = getMetaFile(entry.key);
+		final File tempFile = new File(mDirectory, entry.key + META_SUFFIX + TEMP_SUFFIX);
+		DataOutputStream output = null;
+		try {
+			output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			output.writeInt(VERSION);
+			output.writeUTF(entry.url);
+			output.writeInt(entry.responseCode);
+			output.writeLong(entry.lastModified);
+			output.writeUTF(entry.etag != null ? entry.etag : "");
+			output.writeUTF(entry.lastModifiedHeader != null ? entry.lastModifiedHeader : "");
+			output.writeLong(entry.expiresAt);
+			output.writeLong(entry.bodyLength);
+			output.close();
+			output = null;
+			if (!tempFile.renameTo(metaFile)) {
+				throw new IOException("Could not rename " + tempFile);
+			}
+		} catch (IOException e) {
+			StreamUtils.closeQuietly(output);
+			tempFile.delete();
+			remove(entry.key);
+			return;
+		}
+		final Long previousSize = mEntrySizes.put(entry.key, metaFile.length() + entry.bodyLength);
+		mSize += metaFile.length() + entry.bodyLength - (previousSize != null ? previousSize : 0);
+		trimToSize();
+	}
+
+	private Entry readEntry(String key, String url) {
+		DataInputStream input = null;
+		try {
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(getMetaFile(key))));
+			if (input.readInt() != VERSION || !url.equals(input.readUTF())) {
+				return null;
+			}
+			final Entry entry = new Entry(key, url);
+			entry.responseCode = input.readInt();
+			entry.lastModified = input.readLong();
+			final String etag = input.readUTF();
+			entry.etag = etag.length() > 0 ? etag : null;
+			final String lastModifiedHeader = input.readUTF();
+			entry.lastModifiedHeader = lastModifiedHeader.length() > 0 ? lastModifiedHeader : null;
+			entry.expiresAt = input.readLong();
+			entry.bodyLength = input.readLong();
+			if (getBodyFile(key).length() != entry.bodyLength) {
+				return null;
+			}
+			return entry;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			StreamUtils.closeQuietly(input);
+		}
+	}
+
+	private synchronized void remove(String key) {
+		final Long size = mEntrySizes.remove(key);
+		if (size != null) {
+			mSize -= size;
+		}
+		deleteFiles(key);
+	}
+
+	private void trimToSize() {
+		final Iterator<Map.Entry<String, Long>> iterator = mEntrySizes.entrySet().iterator();
+		while (mSize > mMaxSize && iterator.hasNext()) {
+			final Map.Entry<String, Long> eldest = iterator.next();
+			mSize -= eldest.getValue();
+			iterator.remove();
+			deleteFiles(eldest.getKey());
+		}
+	}
+
+	private void deleteFiles(String key) {
+		getMetaFile(key).delete();
+		getBodyFile(key).delete();
+	}
+
+	private File getMetaFile(String key) {
+		return new File(mDirectory, key + META_SUFFIX);
+	}
+
+	private File getBodyFile(String key) {
+		return new File(mDirectory, key + BODY_SUFFIX);
+	}
+
+	/**
+	 * @return until when the response is fresh, 0 if it has to be revalidated
+	 *         every time, or -1 if it must not be stored
+	 */
+	private static long getExpiresAt(HttpURLConnection connection) {
+		final long now = System.currentTimeMillis();
+		final String cacheControl = connection.getHeaderField("Cache-Control");
+		long maxAge = -1;
+		if (cacheControl != null) {
+			for (String directive : cacheControl.split(",")) {
+				directive = directive.trim().toLowerCase();
+				if (directive.equals("no-store")) {
+					return -1;
+				} else if (directive.equals("no-cache")) {
+					return 0;
+				} else if (directive.startsWith("max-age=")) {
+					try {
+						maxAge = Long.parseLong(directive.substring("max-age=".length()).trim()) * 1000;
+					} catch (NumberFormatException e) {
+						// Ignore the directive
+					}
+				}
+			}
+		}
+		if (maxAge >= 0) {
+			long age = 0;
+			try {
+				final String ageHeader = connection.getHeaderField("Age");
+				age = ageHeader != null ? Long.parseLong(ageHeader.trim()) * 1000 : 0;
+			} catch (NumberFormatException e) {
+				// No age then
+			}
+			return now + maxAge - age;
+		}
+		// Dates are the server's, compare them with the server's clock.
+		final long date = connection.getDate() > 0 ? connection.getDate() : now;
+		if (connection.getExpiration() > 0) {
+			return now + connection.getExpiration() - date;
+		}
+		final long lastModified = connection.getLastModified();
+		if (lastModified > 0 && lastModified < date) {
+			return now + Math.min((date - lastModified) / 10, MAX_HEURISTIC_FRESHNESS_MS);
+		}
+		return 0;
+	}
+
+	private static String getUrl(Request request) {
+		return request.getUrlAddress().getAddress() + request.getPath();
+	}
+
+	private static String getKey(String url) {
+		try {
+			final byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8"));
+			final StringBuilder builder = new StringBuilder();
+			for (byte b : digest) {
+				builder.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+			}
+			return builder.toString();
+		} catch (NoSuchAlgorithmException e) {
+			return Integer.toHexString(url.hashCode());
+		} catch (IOException e) {
+			return Integer.toHexString(url.hashCode());
+		}
+	}
+}
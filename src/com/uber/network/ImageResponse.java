@@ -86,10 +86,9 @@ public class ImageResponse extends Response {
 	}
 
 	private Bitmap createBitmap(BitmapFactory.Options options, InputStream is, Request request) throws IOException, ResponseException {
+		// The stream is consumed and closed by the caller, which releases the connection.
 		Bitmap bitmap = BitmapFactory.decodeStream(is, null, options);
 
-		is.close();
-
 		if (bitmap == null) {
 			throw new ResponseException("Couldn't create image decoding InputStream");
 		}
@@ -24,16 +24,26 @@
 package com.uber.network;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+/**
+ * Wraps an org.json value. The child nodes are created on first use and then
+ * kept, so walking the same tree again doesn't allocate anything.
+ */
 public class JsonNode extends DataNode {
 
+	private static final JsonNode[] NO_CHILDREN = new JsonNode[0];
+
 	private String mName;
 	private Object mValue;
+	private volatile JsonNode[] mChildren;
+	private volatile HashMap<String, JsonNode> mChildrenByName;
 
 	public JsonNode(String name, Object value) {
 		mName = name;
@@ -47,50 +57,87 @@ public class JsonNode extends DataNode {
 
 	@Override
 	public DataNode getNode(String name) {
-		DataNode dataNode = null;
-		try {
-			if (mValue instanceof JSONObject) {
-				dataNode = new JsonNode(name, ((JSONObject) mValue).get(name));
+		if (!(mValue instanceof JSONObject)) {
+			return null;
+		}
+		HashMap<String, JsonNode> childrenByName = mChildrenByName;
+		if (childrenByName == null) {
+			final JsonNode[] children = getChildArray();
+			childrenByName = new HashMap<String, JsonNode>(children.length * 2);
+			for (JsonNode child : children) {
+				childrenByName.put(child.mName, child);
 			}
-		} catch (JSONException e) {
-			dataNode = null;
+			mChildrenByName = childrenByName;
 		}
-		return dataNode;
+		return childrenByName.get(name);
 	}
 
 	@Override
 	public ArrayList<DataNode> getChildren() {
-		final ArrayList<DataNode> dataNodes = new ArrayList<DataNode>();
+		return new ArrayList<DataNode>(Arrays.asList(getChildArray()));
+	}
+
+	@Override
+	public ArrayList<DataNode> getArray() {
 		if (mValue instanceof JSONArray) {
-			dataNodes.addAll(getArray());
-		} else if (mValue instanceof JSONObject) {
-			final JSONObject jsonObject = (JSONObject) mValue;
-			final Iterator<?> keys = jsonObject.keys();
-			while (keys.hasNext()) {
-				final String key = (String) keys.next();
-				final DataNode node = getNode(key);
-				if (node != null) {
-					dataNodes.add(node);
-				}
-			}
+			return new ArrayList<DataNode>(Arrays.asList(getChildArray()));
 		}
-		return dataNodes;
+		return new ArrayList<DataNode>();
 	}
 
 	@Override
-	public ArrayList<DataNode> getArray() {
-		final ArrayList<DataNode> dataNodes = new ArrayList<DataNode>();
+	public int getChildCount() {
+		return getChildArray().length;
+	}
+
+	@Override
+	public DataNode getChildAt(int index) {
+		return getChildArray()[index];
+	}
+
+	private JsonNode[] getChildArray() {
+		JsonNode[] children = mChildren;
+		if (children == null) {
+			children = createChildren();
+			mChildren = children;
+		}
+		return children;
+	}
+
+	private JsonNode[] createChildren() {
 		try {
 			if (mValue instanceof JSONArray) {
 				final JSONArray jsonArray = (JSONArray) mValue;
-				for (int i = 0; i < jsonArray.length(); ++i) {
-					dataNodes.add(new JsonNode("", jsonArray.get(i)));
+				final JsonNode[] children = new JsonNode[jsonArray.length()];
+				for (int i = 0; i < children.length; ++i) {
+					children[i] = new JsonNode("", jsonArray.get(i));
 				}
+				return children;
+			} else if (mValue instanceof JSONObject) {
+				final JSONObject jsonObject = (JSONObject) mValue;
+				final JsonNode[] children = new JsonNode[jsonObject.length()];
+				final Iterator<?> keys = jsonObject.keys();
+				int count = 0;
+				while (keys.hasNext() && count < children.length) {
+					final String key = (String) keys.next();
+					children[count++] = new JsonNode(key, jsonObject.get(key));
+				}
+				if (count < children.length) {
+					final JsonNode[] trimmed = new JsonNode[count];
+					System.arraycopy(children, 0, trimmed, 0, count);
+					return trimmed;
+				}
+				return children;
 			}
 		} catch (JSONException e) {
 			// Nothing else to do
 		}
-		return dataNodes;
+		return NO_CHILDREN;
+	}
+
+	@Override
+	int getArrayLength() {
+		return mValue instanceof JSONArray ? getChildArray().length : 0;
 	}
 
 	@Override
@@ -105,6 +152,11 @@ public class JsonNode extends DataNode {
 	public int getInt(int defaultInt) {
 		if (mValue instanceof Integer) {
 			return ((Integer) mValue).intValue();
+		} else if (mValue instanceof Long) {
+			final long value = ((Long) mValue).longValue();
+			return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE ? (int) value : defaultInt;
+		} else if (mValue instanceof Double) {
+			return ((Double) mValue).intValue();
 		} else if (mValue instanceof String) {
 			try {
 				return Integer.parseInt((String) mValue);
@@ -117,10 +169,8 @@ public class JsonNode extends DataNode {
 
 	@Override
 	public double getDouble(double defaultDouble) {
-		if (mValue instanceof Double) {
-			return ((Double) mValue).doubleValue();
-		} else if (mValue instanceof Integer) {
-			return ((Integer) mValue).doubleValue();
+		if (mValue instanceof Number) {
+			return ((Number) mValue).doubleValue();
 		} else if (mValue instanceof String) {
 			try {
 				return Double.parseDouble((String) mValue);
@@ -133,10 +183,23 @@ public class JsonNode extends DataNode {
 
 	@Override
 	public Long getLong(Long defaultLong) {
-		if (mValue instanceof Long) {
-			return ((Long) mValue).longValue();
-		} else if (mValue instanceof Integer) {
-			return ((Integer) mValue).longValue();
+		if (mValue instanceof Number) {
+			// Doubles truncated, like getLongValue() and getInt() do
+			return ((Number) mValue).longValue();
+		} else if (mValue instanceof String) {
+			try {
+				return Long.parseLong((String) mValue);
+			} catch (NumberFormatException nfe) {
+				return defaultLong;
+			}
+		}
+		return defaultLong;
+	}
+
+	@Override
+	public long getLongValue(long defaultLong) {
+		if (mValue instanceof Number) {
+			return ((Number) mValue).longValue();
 		} else if (mValue instanceof String) {
 			try {
 				return Long.parseLong((String) mValue);
@@ -147,6 +210,13 @@ public class JsonNode extends DataNode {
 		return defaultLong;
 	}
 
+	@Override
+	public boolean getBooleanValue(boolean defaultBoolean) {
+		if (mValue instanceof Boolean) {
+			return ((Boolean) mValue).booleanValue();
+		}
+		return defaultBoolean;
+	}
 	
 	@Override
 	public Boolean getBoolean(Boolean defaultValue) {
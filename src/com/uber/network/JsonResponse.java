@@ -24,28 +24,65 @@
 package com.uber.network;
 
 import java.io.IOException;
-
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.io.InputStream;
+import java.io.StringReader;
 
 public class JsonResponse extends Response {
 	
 	private DataNode mDataNode;
+	private int mSourceLength;
+	private volatile String mRebuiltJson;
 	
 	public JsonResponse(String json, int responseCode) throws ResponseException, IOException {
 		try {
-			JSONObject jsonObject = null;
-			if (json != null && json.length() > 0) {
-				jsonObject = new JSONObject(json);
-			}
-			mDataNode = new JsonNode("", jsonObject);
-		} catch (JSONException e) {
+			mDataNode = parse(new JsonStreamParser(new StringReader(json != null ? json : "")));
+		} catch (IOException e) {
 			throw new ResponseException(String.format("Response code: %d, could not create root JSON object:\n %s", responseCode, json));
 		}
 	}
 	
+	/**
+	 * Parses the JSON straight from the stream, without keeping its text.
+	 */
+	public JsonResponse(InputStream data, int responseCode) throws ResponseException {
+		try {
+			mDataNode = parse(new JsonStreamParser(data));
+		} catch (IOException e) {
+			throw new ResponseException(String.format("Response code: %d, could not create root JSON object: %s", responseCode, e.getMessage()));
+		}
+	}
+	
+	private DataNode parse(JsonStreamParser parser) throws IOException {
+		final CompactJsonNode root = parser.parse();
+		mSourceLength = (int) Math.min(Integer.MAX_VALUE, parser.getConsumedLength());
+		final DataNode dataNode = root != null ? root : CompactJsonNode.createEmpty("");
+		dataNode.setFindIndexEnabled(true);
+		return dataNode;
+	}
+	
 	public DataNode getDataNode() {
 		return mDataNode;
 	}
 
+	/**
+	 * @return the body as text. Unless the request kept it, it is written back
+	 *         from the parsed tree as compact JSON on the first call.
+	 */
+	@Override
+	public String getStringData() {
+		final String stringData = super.getStringData();
+		if (stringData != null) {
+			return stringData;
+		}
+		if (mRebuiltJson == null && mDataNode instanceof CompactJsonNode) {
+			mRebuiltJson = ((CompactJsonNode) mDataNode).toJson();
+		}
+		return mRebuiltJson;
+	}
+
+	@Override
+	int getSourceLength() {
+		return mSourceLength;
+	}
+
 }
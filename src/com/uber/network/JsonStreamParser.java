@@ -0,0 +1,331 @@
+/**
+    UberAndroidNetwork: A JSON/XML network abstraction layer
+    Copyright (c) 2011 by Jordan Bonnet, Uber Technologies
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+*/
+
+package com.uber.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Builds a tree of CompactJsonNode in a single pass over a stream, without
+ * reading the body into a String or going through org.json first. Object
+ * names are shared between nodes, since large responses repeat the same few
+ * names over and over.
+ */
+class JsonStreamParser {
+
+	private static final int BUFFER_SIZE = 8192;
+	private static final int MAX_DEPTH = 512;
+
+	private final Reader mReader;
+	private final char[] mBuffer = new char[BUFFER_SIZE];
+	private int mPosition = 0;
+	private int mLimit = 0;
+	private long mConsumed = 0;
+	private int mDepth = 0;
+	private final StringBuilder mStringBuilder = new StringBuilder();
+	// Children of the objects and arrays being parsed, innermost last.
+	private final ArrayList<CompactJsonNode> mPendingChildren = new ArrayList<CompactJsonNode>();
+	private final HashMap<String, String> mNames = new HashMap<String, String>();
+
+	JsonStreamParser(InputStream stream) throws IOException {
+		this(new InputStreamReader(stream, "UTF-8"));
+	}
+
+	JsonStreamParser(Reader reader) {
+		mReader = reader;
+	}
+
+	/**
+	 * @return the root of the document, or null if it is empty
+	 * @throws IOException if the stream can't be read or isn't valid JSON
+	 */
+	CompactJsonNode parse() throws IOException {
+		int c = nextNonWhitespace();
+		// Skip the byte order mark
+		if (c == 0xfeff) {
+			c = nextNonWhitespace();
+		}
+		if (c == -1) {
+			return null;
+		}
+		final CompactJsonNode root = readValue("", c);
+		if (nextNonWhitespace() != -1) {
+			throw syntaxError("Unexpected data after the root value");
+		}
+		return root;
+	}
+
+	/**
+	 * @return the number of chars parsed so far
+	 */
+	long getConsumedLength() {
+		return mConsumed + mPosition;
+	}
+
+	private CompactJsonNode readValue(String name, int c) throws IOException {
+		switch (c) {
+		case '{':
+			return readObject(name);
+		case '[':
+			return readArray(name);
+		case '"':
+			return CompactJsonNode.createString(name, readString());
+		case 't':
+			expectLiteral("rue");
+			return CompactJsonNode.createBoolean(name, true);
+		case 'f':
+			expectLiteral("alse");
+			return CompactJsonNode.createBoolean(name, false);
+		case 'n':
+			expectLiteral("ull");
+			return CompactJsonNode.createNull(name);
+		default:
+			if (c == '-' || (c >= '0' && c <= '9')) {
+				return readNumber(name, c);
+			}
+			throw syntaxError(c == -1 ? "Unexpected end of document" : "Unexpected character '" + (char) c + "'");
+		}
+	}
+
+	private CompactJsonNode readObject(String name) throws IOException {
+		enter();
+		final int start = mPendingChildren.size();
+		int c = nextNonWhitespace();
+		if (c != '}') {
+			while (true) {
+				if (c != '"') {
+					throw syntaxError("Expected a name");
+				}
+				final String childName = intern(readString());
+				if (nextNonWhitespace() != ':') {
+					throw syntaxError("Expected ':'");
+				}
+				mPendingChildren.add(readValue(childName, nextNonWhitespace()));
+				c = nextNonWhitespace();
+				if (c == '}') {
+					break;
+				} else if (c != ',') {
+					throw syntaxError("Expected ',' or '}'");
+				}
+				c = nextNonWhitespace();
+			}
+		}
+		mDepth--;
+		return CompactJsonNode.createParent(name, CompactJsonNode.TYPE_OBJECT, popChildren(start));
+	}
+
+	private CompactJsonNode readArray(String name) throws IOException {
+		enter();
+		final int start = mPendingChildren.size();
+		int c = nextNonWhitespace();
+		if (c != ']') {
+			while (true) {
+				mPendingChildren.add(readValue("", c));
+				c = nextNonWhitespace();
+				if (c == ']') {
+					break;
+				} else if (c != ',') {
+					throw syntaxError("Expected ',' or ']'");
+				}
+				c = nextNonWhitespace();
+			}
+		}
+		mDepth--;
+		return CompactJsonNode.createParent(name, CompactJsonNode.TYPE_ARRAY, popChildren(start));
+	}
+
+	private void enter() throws IOException {
+		if (++mDepth > MAX_DEPTH) {
+			throw syntaxError("Too deeply nested");
+		}
+	}
+
+	private CompactJsonNode[] popChildren(int start) {
+		final int end = mPendingChildren.size();
+		final CompactJsonNode[] children = new CompactJsonNode[end - start];
+		for (int i = end - 1; i >= start; --i) {
+			children[i - start] = mPendingChildren.remove(i);
+		}
+		return children;
+	}
+
+	/**
+	 * Reads a string whose opening quote has been read.
+	 */
+	private String readString() throws IOException {
+		mStringBuilder.setLength(0);
+		while (true) {
+			// Copy runs of plain chars straight from the buffer.
+			int start = mPosition;
+			while (mPosition < mLimit) {
+				final char c = mBuffer[mPosition];
+				if (c == '"') {
+					mStringBuilder.append(mBuffer, start, mPosition - start);
+					mPosition++;
+					return mStringBuilder.toString();
+				} else if (c == '\\') {
+					mStringBuilder.append(mBuffer, start, mPosition - start);
+					mPosition++;
+					mStringBuilder.append(readEscape());
+					start = mPosition;
+				} else {
+					mPosition++;
+				}
+			}
+			mStringBuilder.append(mBuffer, start, mPosition - start);
+			if (!fill()) {
+				throw syntaxError("Unterminated string");
+			}
+		}
+	}
+
+	private char readEscape() throws IOException {
+		final int c = read();
+		switch (c) {
+		case 'u':
+			int value = 0;
+			for (int i = 0; i < 4; ++i) {
+				final int digit = Character.digit(read(), 16);
+				if (digit < 0) {
+					throw syntaxError("Invalid unicode escape");
+				}
+				value = (value << 4) | digit;
+			}
+			return (char) value;
+		case 'n':
+			return '\n';
+		case 't':
+			return '\t';
+		case 'r':
+			return '\r';
+		case 'b':
+			return '\b';
+		case 'f':
+			return '\f';
+		case '"':
+		case '\\':
+		case '/':
+			return (char) c;
+		default:
+			throw syntaxError("Invalid escape sequence");
+		}
+	}
+
+	/**
+	 * Reads a number straight into a long when it is an integer that fits,
+	 * and through Double.parseDouble() otherwise.
+	 */
+	private CompactJsonNode readNumber(String name, int first) throws IOException {
+		mStringBuilder.setLength(0);
+		mStringBuilder.append((char) first);
+		final boolean isNegative = first == '-';
+		long magnitude = isNegative ? 0 : first - '0';
+		int digitCount = isNegative ? 0 : 1;
+		boolean isInteger = true;
+		while (true) {
+			if (mPosition >= mLimit && !fill()) {
+				break;
+			}
+			final char c = mBuffer[mPosition];
+			if (c >= '0' && c <= '9') {
+				if (magnitude > (Long.MAX_VALUE - (c - '0')) / 10) {
+					// Too large for a long
+					isInteger = false;
+				}
+				magnitude = magnitude * 10 + (c - '0');
+				digitCount++;
+			} else if (c == '.' || c == 'e' || c == 'E' || c == '-' || c == '+') {
+				isInteger = false;
+			} else {
+				break;
+			}
+			mStringBuilder.append(c);
+			mPosition++;
+		}
+		if (isInteger && digitCount > 0) {
+			return CompactJsonNode.createLong(name, isNegative ? -magnitude : magnitude);
+		}
+		try {
+			return CompactJsonNode.createDouble(name, Double.parseDouble(mStringBuilder.toString()));
+		} catch (NumberFormatException e) {
+			throw syntaxError("Invalid number " + mStringBuilder);
+		}
+	}
+
+	private void expectLiteral(String rest) throws IOException {
+		for (int i = 0; i < rest.length(); ++i) {
+			if (read() != rest.charAt(i)) {
+				throw syntaxError("Invalid literal");
+			}
+		}
+	}
+
+	private String intern(String name) {
+		final String shared = mNames.get(name);
+		if (shared != null) {
+			return shared;
+		}
+		mNames.put(name, name);
+		return name;
+	}
+
+	private int nextNonWhitespace() throws IOException {
+		while (true) {
+			if (mPosition >= mLimit && !fill()) {
+				return -1;
+			}
+			final char c = mBuffer[mPosition++];
+			if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+				return c;
+			}
+		}
+	}
+
+	private int read() throws IOException {
+		if (mPosition >= mLimit && !fill()) {
+			return -1;
+		}
+		return mBuffer[mPosition++];
+	}
+
+	private boolean fill() throws IOException {
+		mConsumed += mLimit;
+		mPosition = 0;
+		mLimit = 0;
+		final int count = mReader.read(mBuffer, 0, mBuffer.length);
+		if (count <= 0) {
+			return false;
+		}
+		mLimit = count;
+		return true;
+	}
+
+	private IOException syntaxError(String message) {
+		return new IOException(message + " at character " + getConsumedLength());
+	}
+}
@@ -0,0 +1,55 @@
+/**
+    UberAndroidNetwork: A JSON/XML network abstraction layer
+    Copyright (c) 2011 by Jordan Bonnet, Uber Technologies
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+*/
+
+
+package com.uber.network;
+
+/**
+ * Keep-alive settings of HttpURLConnection, which owns the sockets and keeps
+ * the idle ones in a process-wide pool it doesn't expose. A connection only
+ * goes back to that pool once its response body has been fully read and
+ * closed. How many requests went over a pooled connection is reported by
+ * {@link RttEstimator#getReusedConnectCount()}.
+ */
+public class KeepAlive {
+
+	public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+	public static final long DEFAULT_IDLE_TTL_MS = 5 * 60 * 1000;
+
+	private KeepAlive() {
+	}
+
+	/**
+	 * Call once at startup, for instance in Application.onCreate(), before the
+	 * first request. HttpURLConnection reads these settings when it creates its
+	 * pool and ignores any later change.
+	 * 
+	 * @param maxIdleConnections how many idle connections are kept per host
+	 * @param idleTtlMs how long an idle connection is kept before it is closed
+	 */
+	public static void configure(int maxIdleConnections, long idleTtlMs) {
+		System.setProperty("http.keepAlive", maxIdleConnections > 0 ? "true" : "false");
+		System.setProperty("http.maxConnections", String.valueOf(Math.max(1, maxIdleConnections)));
+		System.setProperty("http.keepAliveDuration", String.valueOf(idleTtlMs));
+	}
+}
@@ -23,7 +23,6 @@
 
 package com.uber.network;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.ConnectException;
@@ -33,13 +32,11 @@ import java.net.Proxy;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
 import java.util.HashMap;
 import java.util.Vector;
-import java.util.zip.GZIPInputStream;
 
 import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
 
 import org.acra.ACRA;
 import org.acra.ErrorReporter;
@@ -49,6 +46,7 @@ import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 
+import com.uber.utils.StreamUtils;
 import com.uber.utils.UBLogs;
 
 public class LogsSender  {
@@ -63,6 +61,8 @@ public class LogsSender  {
 	public final static int DOWNLOADER_HIGH_PRIORITY = 2;
 
 	public final static boolean REPORT_NETWORK_PROBLEMS = true;
+
+	private static final UberHostnameVerifier HOSTNAME_VERIFIER = new UberHostnameVerifier();
 	
 	private HttpURLConnection mConnection = null;
 	private Bundle headerParams;
@@ -75,16 +75,6 @@ public class LogsSender  {
 		mRequest = request;
 	}
 
-	private void trustCertificate() {
-		try {
-			final SSLContext sslContext = SSLContext.getInstance("TLS");
-			sslContext.init(null, new TrustManager[] { new UberTrustManager() }, new java.security.SecureRandom());
-			HttpsURLConnection.setDefaultSSLSocketFactory(sslContext.getSocketFactory());
-		} catch (Exception e) {
-			// Pretty fucked here
-		}
-	}
-
 	/**
 	 * This is a *smart* helper method which, given a request, manages to create
 	 * the right kind of http connection.
@@ -114,14 +104,21 @@ public class LogsSender  {
 				if (protocol.equals("http")) {
 					connection = (HttpURLConnection) url.openConnection();
 				} else if (protocol.equals("https")) {
-					trustCertificate();
 					final HttpsURLConnection sslConnection = (HttpsURLConnection) url.openConnection(Proxy.NO_PROXY);
-					sslConnection.setHostnameVerifier(new UberHostnameVerifier());
+					try {
+						sslConnection.setSSLSocketFactory(UberSSLSocketFactory.getInstance());
+					} catch (GeneralSecurityException e) {
+						// Pretty fucked here
+					}
+					sslConnection.setHostnameVerifier(HOSTNAME_VERIFIER);
 					connection = sslConnection;
 				}
 				
 				if (connection != null) {
 					
+					// Ask for a compressed response, decoded by DecodingInputStream
+					connection.setRequestProperty("Accept-Encoding", DecodingInputStream.ACCEPT_ENCODING);
+					
 					// Add custom headers
 					if (headerParams != null) {
 						for (String key : headerParams.keySet()) {
@@ -146,17 +143,12 @@ public class LogsSender  {
 						connection.setRequestProperty("Content-Type", request.getContentType());
 					}
 					
-					// Set content length
-					int contentLength = request.getBody() == null ? 0 : request.getBody().length;
-					connection.setRequestProperty("Content-length", String.valueOf(contentLength));
-					
 					// Handle if has body or not
-					if (!(method.equals("DELETE") || method.equals("GET")) && request.getBody() != null) {
-						connection.setDoOutput(true);
-						connection.setDoInput(true);
-						final DataOutputStream output = new DataOutputStream(connection.getOutputStream());
-						output.write(request.getBody());
+					final RequestBody body = method.equals("DELETE") || method.equals("GET") ? null : request.getRequestBody();
+					if (body != null) {
+						RequestBody.send(connection, request, body);
 					} else {
+						connection.setRequestProperty("Content-length", "0");
 						connection.connect();
 					}
 				}
@@ -210,11 +202,10 @@ public class LogsSender  {
 						}
 						responseStream = connection.getErrorStream();
 					}
-					final String contentEnconding = connection.getContentEncoding();
-					if (contentEnconding != null && contentEnconding.equalsIgnoreCase("gzip")) {
-						responseStream = new GZIPInputStream(responseStream);
-					}
-					if (onServerResponse(request, responseStream, connection, timeInMs)) {
+					responseStream = DecodingInputStream.wrap(responseStream, connection.getContentEncoding());
+					final boolean isDone = onServerResponse(request, responseStream, connection, timeInMs);
+					StreamUtils.consume(responseStream);
+					if (isDone) {
 						return;
 					}
 				}
@@ -0,0 +1,195 @@
+/**
+    UberAndroidNetwork: A JSON/XML network abstraction layer
+    Copyright (c) 2011 by Jordan Bonnet, Uber Technologies
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+*/
+
+package com.uber.network;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps parsed responses in memory so that repeated GETs skip both the
+ * network and the parser. Only requests with a TTL, set with
+ * {@link Request#setMemoryCacheTtl(long)}, are cached. The cache is bounded
+ * by the estimated size of the responses, least recently used first.
+ */
+public class MemoryCache {
+
+	public static final int DEFAULT_MAX_SIZE = 2 * 1024 * 1024;
+
+	private static MemoryCache sInstance;
+
+	private static class Entry {
+		final Response response;
+		final int size;
+		final long expiresAt;
+
+		Entry(Response response, int size, long expiresAt) {
+			this.response = response;
+			this.size = size;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	// Least recently used first.
+	private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private int mMaxSize = DEFAULT_MAX_SIZE;
+	private int mSize = 0;
+	private int mHitCount = 0;
+	private int mMissCount = 0;
+	private int mEvictionCount = 0;
+
+	public static synchronized MemoryCache getInstance() {
+		if (sInstance == null) {
+			sInstance = new MemoryCache();
+		}
+		return sInstance;
+	}
+
+	private MemoryCache() {
+	}
+
+	/**
+	 * @param maxSize in bytes, as estimated by Response.getEstimatedSize(), or
+	 *            0 to disable the cache
+	 */
+	public synchronized void setMaxSize(int maxSize) {
+		mMaxSize = maxSize;
+		trimToSize();
+	}
+
+	/**
+	 * @return a copy of the cached response answering the request, or null
+	 */
+	synchronized Response get(Request request) {
+		return get(request, true);
+	}
+
+	/**
+	 * Like {@link #get(Request)}, without counting a hit or a miss, for
+	 * requests that have already been looked up once.
+	 */
+	synchronized Response recheck(Request request) {
+		return get(request, false);
+	}
+
+	private Response get(Request request, boolean isCounted) {
+		final String key = getKey(request);
+		if (key == null) {
+			return null;
+		}
+		final Entry entry = mEntries.get(key);
+		if (entry == null || System.currentTimeMillis() >= entry.expiresAt) {
+			if (entry != null) {
+				remove(key);
+			}
+			if (isCounted) {
+				mMissCount++;
+			}
+			return null;
+		}
+		if (isCounted) {
+			mHitCount++;
+		}
+		request.setResponseCode(entry.response.getResponseCode());
+		return entry.response.copyFor(request);
+	}
+
+	/**
+	 * Caches a successful response if its request has a TTL and there's no
+	 * valid entry for it yet.
+	 */
+	synchronized void put(Request request, Response response) {
+		final String key = getKey(request);
+		if (key == null || response == null || response.getResponseCode() != 200) {
+			return;
+		}
+		final Entry previous = mEntries.get(key);
+		if (previous != null && System.currentTimeMillis() < previous.expiresAt) {
+			return;
+		}
+		final int size = response.getEstimatedSize();
+		if (size > mMaxSize / 4) {
+			// Would push out too many others.
+			return;
+		}
+		remove(key);
+		mEntries.put(key, new Entry(response, size, System.currentTimeMillis() + request.getMemoryCacheTtl()));
+		mSize += size;
+		trimToSize();
+	}
+
+	public synchronized void remove(Request request) {
+		final String key = getKey(request);
+		if (key != null) {
+			remove(key);
+		}
+	}
+
+	public synchronized void clear() {
+		mEntries.clear();
+		mSize = 0;
+	}
+
+	/**
+	 * @return the estimated size of the cached responses in bytes
+	 */
+	public synchronized int getSize() {
+		return mSize;
+	}
+
+	public synchronized int getHitCount() {
+		return mHitCount;
+	}
+
+	public synchronized int getMissCount() {
+		return mMissCount;
+	}
+
+	/**
+	 * @return the number of responses dropped to stay under the maximum size
+	 */
+	public synchronized int getEvictionCount() {
+		return mEvictionCount;
+	}
+
+	private void remove(String key) {
+		final Entry entry = mEntries.remove(key);
+		if (entry != null) {
+			mSize -= entry.size;
+		}
+	}
+
+	private void trimToSize() {
+		final Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+		while (mSize > mMaxSize && iterator.hasNext()) {
+			mSize -= iterator.next().getValue().size;
+			iterator.remove();
+			mEvictionCount++;
+		}
+	}
+
+	private static String getKey(Request request) {
+		return request.getMemoryCacheTtl() > 0 ? RequestCoalescer.getKey(request) : null;
+	}
+}
@@ -0,0 +1,243 @@
+/**
+    UberAndroidNetwork: A JSON/XML network abstraction layer
+    Copyright (c) 2011 by Jordan Bonnet, Uber Technologies
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+*/
+
+package com.uber.network;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Long-lived alternative to {@link Downloader}. Its worker threads stay up
+ * for the whole app session, so there is nothing to re-create between
+ * requests, requests can be added at any time, and connection state and
+ * caches stay warm. Callbacks are posted to the main thread, like
+ * Downloader's onProgressUpdate.
+ * 
+ * <pre>
+ * NetworkEngine.getInstance().addGet(urlAddress, "/config", TYPE_CONFIG, Response.JSON_TYPE, Downloader.DOWNLOADER_NORMAL_PRIORITY);
+ * </pre>
+ */
+public class NetworkEngine {
+
+	public static final int DEFAULT_MAX_CONCURRENCY = 4;
+	public static final int DEFAULT_MAX_PER_HOST = 2;
+
+	private static NetworkEngine sInstance;
+
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+	private volatile OnDownloadListener mDownloadListener = null;
+	private int mMaxConcurrency = DEFAULT_MAX_CONCURRENCY;
+	private final ArrayList<Thread> mWorkers = new ArrayList<Thread>();
+	private final Dispatcher mDispatcher = new Dispatcher() {
+		@Override
+		protected void deliver(final int retCode, final Request request, final Object result) {
+			mMainHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					Dispatcher.notifyListener(mDownloadListener, retCode, request, result);
+				}
+			});
+		}
+
+		@Override
+		protected boolean isStopped() {
+			synchronized (NetworkEngine.this) {
+				// Workers left over from before a restart stop as well.
+				return !mWorkers.contains(Thread.currentThread());
+			}
+		}
+	};
+
+	public static synchronized NetworkEngine getInstance() {
+		if (sInstance == null) {
+			sInstance = new NetworkEngine();
+		}
+		return sInstance;
+	}
+
+	private NetworkEngine() {
+		mDispatcher.setMaxPerHost(DEFAULT_MAX_PER_HOST);
+	}
+
+	/**
+	 * Sets the listener of the requests that don't have their own.
+	 */
+	public void setOnDownloadListener(OnDownloadListener listener) {
+		mDownloadListener = listener;
+	}
+
+	/**
+	 * Sets how many requests may be in flight, in total and to the same host.
+	 * Takes effect on the next {@link #start()}.
+	 * 
+	 * @param maxPerHost the number of requests in flight to the same host, or
+	 *            0 for no limit other than maxConcurrency
+	 */
+	public synchronized void setMaxConcurrency(int maxConcurrency, int maxPerHost) {
+		mMaxConcurrency = Math.max(1, maxConcurrency);
+		mDispatcher.setMaxPerHost(maxPerHost);
+	}
+
+	/**
+	 * @see Downloader#setCoalescingEnabled(boolean)
+	 */
+	public void setCoalescingEnabled(boolean isCoalescingEnabled) {
+		mDispatcher.setCoalescingEnabled(isCoalescingEnabled);
+	}
+
+	/**
+	 * @see Downloader#setBatching(String, long)
+	 */
+	public void setBatching(String batchPath, long windowMs) {
+		mDispatcher.setBatching(batchPath, windowMs);
+	}
+
+	/**
+	 * @see Downloader#setHedging(double, long)
+	 */
+	public void setHedging(double percentile, long minDelayMs) {
+		mDispatcher.setHedging(percentile, minDelayMs);
+	}
+
+	/**
+	 * Cancels a request: it is taken out of the queue, or its transfer is
+	 * aborted if it is in flight. Its listener won't be called.
+	 */
+	public void cancelRequest(Request request) {
+		mDispatcher.cancelRequest(request);
+	}
+
+	/**
+	 * Cancels every request with the given tag.
+	 */
+	public void cancelRequests(Object tag) {
+		mDispatcher.cancelRequests(tag);
+	}
+
+	/**
+	 * Cancels every request. The engine keeps running.
+	 */
+	public void cancelAll() {
+		mDispatcher.cancelAll();
+	}
+
+	public void setHeaderParams(Bundle headerParams) {
+		mDispatcher.setHeaderParams(headerParams);
+	}
+
+	/**
+	 * Starts the worker threads. Adding a request starts the engine as well,
+	 * so calling this is only needed to warm it up early.
+	 */
+	public synchronized void start() {
+		if (!mWorkers.isEmpty()) {
+			return;
+		}
+		mDispatcher.getQueue().open();
+		for (int i = 0; i < mMaxConcurrency; ++i) {
+			final Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+					mDispatcher.runWorker(-1);
+				}
+			}, "NetworkEngine-worker-" + (i + 1));
+			mWorkers.add(worker);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Starts the engine and resolves the hosts of the given addresses in the
+	 * background, which takes DNS off the path of the first requests.
+	 */
+	public void start(UrlAddress... urlAddresses) {
+		start();
+		for (UrlAddress urlAddress : urlAddresses) {
+			DnsCache.getInstance().prefetch(urlAddress);
+		}
+	}
+
+	/**
+	 * Stops the worker threads once they are done with their current attempt.
+	 * Queued requests are kept and run on the next {@link #start()}.
+	 */
+	public void shutdown() {
+		synchronized (this) {
+			if (mWorkers.isEmpty()) {
+				return;
+			}
+			mWorkers.clear();
+			mDispatcher.getQueue().close();
+		}
+		final OnDownloadListener listener = mDownloadListener;
+		if (listener != null) {
+			mMainHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					listener.onCancel();
+				}
+			});
+		}
+	}
+
+	public synchronized boolean isRunning() {
+		return !mWorkers.isEmpty();
+	}
+
+	public void addDownload(UrlAddress urlAddress, int type, int responseType, int priority) {
+		addDownload(urlAddress, type, responseType, priority, null);
+	}
+
+	public void addDownload(UrlAddress urlAddress, int type, int responseType, int priority, Object tag) {
+		addRequest(new Request(urlAddress, "", "GET", null, null, responseType, type, tag, priority));
+	}
+
+	public void addGet(UrlAddress urlAddress, HashMap<String, Object> params, int type, int responseType, int priority) {
+		addGet(urlAddress, Downloader.toQueryString(params), type, responseType, priority);
+	}
+
+	public void addGet(UrlAddress urlAddress, String path, int type, int responseType, int priority) {
+		addRequest(new Request(urlAddress, path, "GET", null, null, responseType, type, null, priority));
+	}
+
+	public void addHead(UrlAddress urlAddress, int type, int responseType, int priority) {
+		addRequest(new Request(urlAddress, "", "HEAD", null, null, responseType, type, null, priority));
+	}
+
+	public void addPost(UrlAddress urlAddress, String path, String postRequest, String contentType, int type, int responseType, Object tag, int priority) {
+		addRequest(new Request(urlAddress, path, "POST", postRequest, contentType, responseType, type, tag, priority));
+	}
+
+	public void addRequest(Request request) {
+		if (request != null) {
+			mDispatcher.enqueue(request);
+			start();
+		}
+	}
+}
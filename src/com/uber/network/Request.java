@@ -1,22 +1,43 @@
 package com.uber.network;
 
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.URL;
 
 public class Request {
 
 	private UrlAddress urlAddress;
+	private String serverAddress;
 	private String path;
 	private String requestMethod;
 	private String bodyString;
 	private byte[] body;
+	private RequestBody requestBody;
 	private String contentType;
 	private int responseType;
 	private int type;
 	private int responseCode;
 	private int rotationCount;
 	private int attemptCount;
+	private int retryCount;
+	private long retryDelay;
 	private int priority;
 	private boolean isFirstAttempt;
+	private boolean isBatchable;
+	private boolean isIdempotent;
+	private boolean isCompressionEnabled;
+	private long memoryCacheTtl;
+	private boolean isStringDataKept;
+	private int connectTimeout;
+	private int readTimeout;
+	private long totalTimeout;
+	private long startTime;
+	private long receivedByteCount;
+	private long decodedByteCount;
+	private volatile boolean isCancelled;
+	private volatile HttpURLConnection activeConnection;
+	private volatile HedgedConnector activeConnector;
+	private HttpCache.Entry cacheEntry;
 	private Object tag;
 	private OnDownloadListener listener;
 	
@@ -46,6 +67,8 @@ public class Request {
 	public void init() {
 		this.rotationCount = this.urlAddress == null ? 0 : this.urlAddress.size();
 		this.attemptCount = 1;
+		this.retryCount = 0;
+		this.retryDelay = -1;
 		this.responseCode = -1;
 		this.isFirstAttempt = true;
 	}
@@ -66,6 +89,18 @@ public class Request {
 		this.urlAddress = urlAddress;
 	}
 
+	/**
+	 * @return the address of the UrlAddress the last attempt went to, or null
+	 *         before the first attempt
+	 */
+	public String getServerAddress() {
+		return serverAddress;
+	}
+
+	public void setServerAddress(String serverAddress) {
+		this.serverAddress = serverAddress;
+	}
+
 	public String getPath() {
 		return path;
 	}
@@ -84,7 +119,12 @@ public class Request {
 
 	public byte[] getBody() {
 		if (this.body == null && this.bodyString != null) {
-			this.body = this.bodyString.getBytes();
+			try {
+				this.body = this.bodyString.getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				// Every platform has UTF-8
+				throw new RuntimeException(e);
+			}
 		}
 		return this.body;
 	}
@@ -99,6 +139,39 @@ public class Request {
 	
 	public void setBodyString(String bodyString) {
 		this.bodyString = bodyString;
+		this.body = null;
+	}
+
+	/**
+	 * @return the body to send, streamed if it was set with
+	 *         {@link #setRequestBody(RequestBody)}, or null
+	 */
+	public RequestBody getRequestBody() {
+		if (this.requestBody != null) {
+			return this.requestBody;
+		}
+		final byte[] body = getBody();
+		return body != null ? RequestBody.create(body) : null;
+	}
+
+	boolean hasBody() {
+		return requestBody != null || body != null || bodyString != null;
+	}
+
+	/**
+	 * @return true if the body was not given as a string, but as bytes or a
+	 *         streamed RequestBody
+	 */
+	boolean hasBinaryBody() {
+		return requestBody != null || (body != null && bodyString == null);
+	}
+
+	/**
+	 * Sets a body that is streamed to the server, from a file or a writer for
+	 * instance, instead of the body string.
+	 */
+	public void setRequestBody(RequestBody requestBody) {
+		this.requestBody = requestBody;
 	}
 
 	public String getContentType() {
@@ -149,6 +222,26 @@ public class Request {
 		this.attemptCount = attemptCount;
 	}
 
+	public int getRetryCount() {
+		return retryCount;
+	}
+
+	public void setRetryCount(int retryCount) {
+		this.retryCount = retryCount;
+	}
+
+	/**
+	 * @return the delay in ms before the next attempt requested by the server
+	 *         or the downloader, or -1 to use the default backoff
+	 */
+	public long getRetryDelay() {
+		return retryDelay;
+	}
+
+	public void setRetryDelay(long retryDelay) {
+		this.retryDelay = retryDelay;
+	}
+
 	public int getPriority() {
 		return priority;
 	}
@@ -173,6 +266,204 @@ public class Request {
 		this.tag = tag;
 	}
 	
+	public boolean isBatchable() {
+		return isBatchable;
+	}
+
+	/**
+	 * Lets a Downloader with batching enabled send this request along with
+	 * other JSON POSTs to the same UrlAddress in a single envelope. Only POSTs
+	 * with a JSON content type and a string body are batched.
+	 */
+	public void setBatchable(boolean isBatchable) {
+		this.isBatchable = isBatchable;
+	}
+
+	/**
+	 * @return true if the request may safely reach the server more than once,
+	 *         which is always the case for GET and HEAD requests
+	 */
+	public boolean isIdempotent() {
+		return isIdempotent || "GET".equals(requestMethod) || "HEAD".equals(requestMethod);
+	}
+
+	/**
+	 * Marks a request with another method as safe to send twice, which lets
+	 * it be hedged.
+	 */
+	public void setIdempotent(boolean isIdempotent) {
+		this.isIdempotent = isIdempotent;
+	}
+
+	public boolean isCompressionEnabled() {
+		return isCompressionEnabled;
+	}
+
+	/**
+	 * Gzips the body before sending it, if it is large enough to be worth it.
+	 * The server has to accept Content-Encoding: gzip.
+	 */
+	public void setCompressionEnabled(boolean isCompressionEnabled) {
+		this.isCompressionEnabled = isCompressionEnabled;
+	}
+
+	public long getMemoryCacheTtl() {
+		return memoryCacheTtl;
+	}
+
+	/**
+	 * Keeps the parsed response of this GET in the MemoryCache, where later
+	 * identical requests find it without going to the network.
+	 * 
+	 * @param memoryCacheTtl in ms, or 0 to not cache the response
+	 */
+	public void setMemoryCacheTtl(long memoryCacheTtl) {
+		this.memoryCacheTtl = memoryCacheTtl;
+	}
+
+	public boolean isStringDataKept() {
+		return isStringDataKept;
+	}
+
+	/**
+	 * JSON responses are parsed straight from the stream and don't keep their
+	 * text: Response.getStringData() writes it back from the tree, as compact
+	 * JSON. Set this to get the exact text the server sent, at the cost of
+	 * holding both the text and the tree.
+	 */
+	public void setStringDataKept(boolean isStringDataKept) {
+		this.isStringDataKept = isStringDataKept;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	/**
+	 * @param connectTimeout in ms, or 0 to follow the observed round trips
+	 * @param readTimeout the longest wait for data in ms, or 0 to follow the
+	 *            observed round trips, or to wait as long as the deadline
+	 *            allows for requests that aren't idempotent
+	 */
+	public void setTimeouts(int connectTimeout, int readTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	public long getTotalTimeout() {
+		return totalTimeout;
+	}
+
+	/**
+	 * Sets a deadline for the whole request, retries included, counted from
+	 * the moment it is added to a downloader. Once it is over, the request
+	 * fails with a SocketTimeoutException, even in the middle of a transfer.
+	 * 
+	 * @param totalTimeout in ms, or 0 for no deadline
+	 */
+	public void setTotalTimeout(long totalTimeout) {
+		this.totalTimeout = totalTimeout;
+	}
+
+	/**
+	 * @return when the request was added to a downloader, or 0
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public void setStartTime(long startTime) {
+		this.startTime = startTime;
+	}
+
+	/**
+	 * @return the time left before the deadline in ms, or Long.MAX_VALUE if
+	 *         there is no deadline
+	 */
+	public long getRemainingTime() {
+		if (totalTimeout <= 0 || startTime <= 0) {
+			return Long.MAX_VALUE;
+		}
+		return startTime + totalTimeout - System.currentTimeMillis();
+	}
+
+	/**
+	 * @return the number of response bytes read from the wire in the last
+	 *         attempt, compressed if the server compressed the response
+	 */
+	public long getReceivedByteCount() {
+		return receivedByteCount;
+	}
+
+	/**
+	 * @return the number of response bytes once decompressed in the last
+	 *         attempt
+	 */
+	public long getDecodedByteCount() {
+		return decodedByteCount;
+	}
+
+	void setByteCounts(long receivedByteCount, long decodedByteCount) {
+		this.receivedByteCount = receivedByteCount;
+		this.decodedByteCount = decodedByteCount;
+	}
+
+	public boolean isCancelled() {
+		return isCancelled;
+	}
+
+	/**
+	 * Cancels the request: it won't be sent if it is still queued, its
+	 * transfer is aborted if it is in flight, and its listener won't be
+	 * called. Downloader.cancelRequest() also takes it out of the queue right
+	 * away.
+	 */
+	public void cancel() {
+		isCancelled = true;
+		abort();
+	}
+
+	/**
+	 * Disconnects the connection of the attempt in flight, if any.
+	 */
+	void abort() {
+		final HedgedConnector connector = activeConnector;
+		if (connector != null) {
+			connector.abort();
+		}
+		final HttpURLConnection connection = activeConnection;
+		if (connection != null) {
+			connection.disconnect();
+		}
+	}
+
+	void setActiveConnection(HttpURLConnection activeConnection) {
+		this.activeConnection = activeConnection;
+	}
+
+	/**
+	 * @param activeConnector the hedged attempts racing for this request, or
+	 *            null once one has won
+	 */
+	void setActiveConnector(HedgedConnector activeConnector) {
+		this.activeConnector = activeConnector;
+	}
+
+	/**
+	 * @return the cached response the attempt in flight revalidates, or null
+	 */
+	HttpCache.Entry getCacheEntry() {
+		return cacheEntry;
+	}
+
+	void setCacheEntry(HttpCache.Entry cacheEntry) {
+		this.cacheEntry = cacheEntry;
+	}
+
 	public OnDownloadListener getListener() {
 		return this.listener;
 	}
@@ -0,0 +1,156 @@
+/**
+    UberAndroidNetwork: A JSON/XML network abstraction layer
+    Copyright (c) 2011 by Jordan Bonnet, Uber Technologies
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+*/
+
+package com.uber.network;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+
+import com.uber.utils.StreamUtils;
+
+/**
+ * The body of a request, written straight to the connection so large uploads
+ * never have to sit on the heap as a whole. A body may be written more than
+ * once when its request is retried.
+ */
+public abstract class RequestBody {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Writes a body of unknown size, which is then sent in chunks.
+	 */
+	public interface Writer {
+		void writeTo(OutputStream output) throws IOException;
+	}
+
+	/**
+	 * @return the size of the body in bytes, or -1 if it is unknown
+	 */
+	public abstract long getContentLength();
+
+	public abstract void writeTo(OutputStream output) throws IOException;
+
+	/**
+	 * @param string encoded as UTF-8
+	 */
+	public static RequestBody create(String string) {
+		try {
+			return create(string.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			// Every platform has UTF-8
+			throw new RuntimeException(e);
+		}
+	}
+
+	public static RequestBody create(final byte[] bytes) {
+		return new RequestBody() {
+			@Override
+			public long getContentLength() {
+				return bytes.length;
+			}
+
+			@Override
+			public void writeTo(OutputStream output) throws IOException {
+				output.write(bytes);
+			}
+		};
+	}
+
+	public static RequestBody create(final File file) {
+		return new RequestBody() {
+			@Override
+			public long getContentLength() {
+				return file.length();
+			}
+
+			@Override
+			public void writeTo(OutputStream output) throws IOException {
+				final InputStream input = new FileInputStream(file);
+				try {
+					final byte[] buffer = new byte[BUFFER_SIZE];
+					int count;
+					while ((count = input.read(buffer)) != -1) {
+						output.write(buffer, 0, count);
+					}
+				} finally {
+					StreamUtils.closeQuietly(input);
+				}
+			}
+		};
+	}
+
+	public static RequestBody create(Writer writer) {
+		return create(writer, -1);
+	}
+
+	/**
+	 * @param contentLength the size of what the writer writes, or -1 if it is
+	 *            unknown
+	 */
+	public static RequestBody create(final Writer writer, final long contentLength) {
+		return new RequestBody() {
+			@Override
+			public long getContentLength() {
+				return contentLength;
+			}
+
+			@Override
+			public void writeTo(OutputStream output) throws IOException {
+				writer.writeTo(output);
+			}
+		};
+	}
+
+	/**
+	 * Streams the body to the connection, gzipped if the request or its
+	 * UrlAddress asks for it, with a fixed length when the size is known and
+	 * in chunks otherwise, and closes the output stream.
+	 */
+	static void send(HttpURLConnection connection, Request request, RequestBody body) throws IOException {
+		if (GzipRequestBody.shouldCompress(request, body)) {
+			body = new GzipRequestBody(body);
+			connection.setRequestProperty("Content-Encoding", "gzip");
+		}
+		connection.setDoOutput(true);
+		final long contentLength = body.getContentLength();
+		if (contentLength >= 0 && contentLength <= Integer.MAX_VALUE) {
+			connection.setFixedLengthStreamingMode((int) contentLength);
+		} else {
+			connection.setChunkedStreamingMode(0);
+		}
+		final OutputStream output = new BufferedOutputStream(connection.getOutputStream(), BUFFER_SIZE);
+		try {
+			body.writeTo(output);
+			output.flush();
+		} finally {
+			output.close();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/**
+    UberAndroidNetwork: A JSON/XML network abstraction layer
+    Copyright (c) 2011 by Jordan Bonnet, Uber Technologies
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+*/
+
+package com.uber.network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Keeps track of the GET and HEAD requests in flight so that an identical
+ * request of the same priority added in the meantime waits for the same
+ * response instead of hitting the network again.
+ */
+class RequestCoalescer {
+
+	private static class Group {
+		final String key;
+		final ArrayList<Request> followers = new ArrayList<Request>();
+
+		Group(String key) {
+			this.key = key;
+		}
+	}
+
+	private final HashMap<String, Request> mLeaders = new HashMap<String, Request>();
+	private final IdentityHashMap<Request, Group> mGroups = new IdentityHashMap<Request, Group>();
+
+	/**
+	 * @return true if the request has been attached to an identical request
+	 *         in flight and must not be sent, false if it should be sent
+	 */
+	public synchronized boolean attach(Request request) {
+		final String key = getKey(request);
+		if (key == null) {
+			return false;
+		}
+		final Request leader = mLeaders.get(key);
+		if (leader == null) {
+			mLeaders.put(key, request);
+			mGroups.put(request, new Group(key));
+			return false;
+		}
+		if (leader == request) {
+			return true;
+		}
+		if (leader.getPriority() != request.getPriority()) {
+			// A follower waits at its leader's rank and gives up after its
+			// attempts, so it would inherit the wrong ones.
+			return false;
+		}
+		mGroups.get(leader).followers.add(request);
+		return true;
+	}
+
+	/**
+	 * Stops coalescing on the given request.
+	 * 
+	 * @return the requests waiting for its result, possibly empty
+	 */
+	public synchronized ArrayList<Request> detach(Request leader) {
+		final Group group = mGroups.remove(leader);
+		if (group == null) {
+			return new ArrayList<Request>();
+		}
+		mLeaders.remove(group.key);
+		return group.followers;
+	}
+
+	/**
+	 * Stops waiting for a result on behalf of the given request.
+	 */
+	public synchronized void remove(Request follower) {
+		for (Group group : mGroups.values()) {
+			if (group.followers.remove(follower)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the requests waiting for the result of another one
+	 */
+	public synchronized ArrayList<Request> getFollowers() {
+		final ArrayList<Request> followers = new ArrayList<Request>();
+		for (Group group : mGroups.values()) {
+			followers.addAll(group.followers);
+		}
+		return followers;
+	}
+
+	/**
+	 * @return the identity of the request, or null if it cannot be shared
+	 */
+	static String getKey(Request request) {
+		final String method = request.getRequestMethod();
+		if (!("GET".equals(method) || "HEAD".equals(method)) || request.getUrlAddress() == null) {
+			return null;
+		}
+		final byte[] body = request.getBody();
+		return method + " " + request.getUrlAddress().getAddress() + request.getPath() + " " + request.getResponseType() + " " + (body != null ? Arrays.hashCode(body) : 0);
+	}
+}
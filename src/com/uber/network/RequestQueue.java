@@ -0,0 +1,298 @@
+/**
+    UberAndroidNetwork: A JSON/XML network abstraction layer
+    Copyright (c) 2011 by Jordan Bonnet, Uber Technologies
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+*/
+
+package com.uber.network;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Blocking queue shared by the workers of a {@link Downloader}. Requests come
+ * out by priority, high first, and a request gains one priority level for
+ * every AGING_INTERVAL_MS it waits so that low priority work cannot starve.
+ * A request is only handed out when its host has fewer than maxPerHost
+ * requests in flight, so that one slow server cannot take every worker.
+ */
+class RequestQueue {
+
+	public static final int NO_LIMIT = 0;
+
+	private static final long AGING_INTERVAL_MS = 2000;
+
+	private static class Entry {
+		final Request request;
+		final long enqueuedAt;
+		final long sequence;
+		long notBefore;
+		String host;
+
+		Entry(Request request, long enqueuedAt, long sequence) {
+			this.request = request;
+			this.enqueuedAt = enqueuedAt;
+			this.notBefore = enqueuedAt;
+			this.sequence = sequence;
+		}
+	}
+
+	private final LinkedList<Entry> mEntries = new LinkedList<Entry>();
+	private final IdentityHashMap<Request, Entry> mInFlight = new IdentityHashMap<Request, Entry>();
+	private final HashMap<String, Integer> mHostCounts = new HashMap<String, Integer>();
+	private int mMaxPerHost = NO_LIMIT;
+	private boolean mIsClosed = false;
+	private long mSequence = 0;
+
+	public synchronized void setMaxPerHost(int maxPerHost) {
+		mMaxPerHost = maxPerHost;
+		notifyAll();
+	}
+
+	public synchronized void add(Request request) {
+		add(request, 0);
+	}
+
+	/**
+	 * Adds a request that will not be handed out before delayMs.
+	 */
+	public synchronized void add(Request request, long delayMs) {
+		mEntries.add(new Entry(request, System.currentTimeMillis() + Math.max(0, delayMs), mSequence++));
+		notifyAll();
+	}
+
+	/**
+	 * Removes and returns the most urgent request whose host can take one more
+	 * connection. The caller must hand it back with {@link #release(Request)}
+	 * or {@link #requeue(Request)} once it is done with it.
+	 * 
+	 * @param idleTimeoutMs how long to wait while nothing is queued nor in
+	 *            flight, or a negative value to wait until the queue is closed
+	 * @return the request, or null if the queue stayed idle or got closed
+	 * @throws InterruptedException
+	 */
+	public synchronized Request take(long idleTimeoutMs) throws InterruptedException {
+		long idleSince = -1;
+		while (!mIsClosed) {
+			final Request request = pollAvailable();
+			if (request != null) {
+				return request;
+			}
+			if (idleTimeoutMs >= 0 && isIdle()) {
+				final long now = System.currentTimeMillis();
+				if (idleSince < 0) {
+					idleSince = now;
+				}
+				final long remaining = idleTimeoutMs - (now - idleSince);
+				if (remaining <= 0) {
+					return null;
+				}
+				wait(remaining);
+			} else {
+				// Work is queued or in flight, wait for it to move.
+				idleSince = -1;
+				final long dueIn = getNextDueIn();
+				if (dueIn > 0) {
+					wait(dueIn);
+				} else {
+					wait();
+				}
+			}
+		}
+		return null;
+	}
+
+	public synchronized void release(Request request) {
+		releaseEntry(request);
+		notifyAll();
+	}
+
+	/**
+	 * Puts a request taken from this queue back, keeping its original age so
+	 * it is not pushed behind requests that came after it.
+	 */
+	public synchronized void requeue(Request request) {
+		requeue(request, 0);
+	}
+
+	/**
+	 * Same as {@link #requeue(Request)}, but the request will not be handed
+	 * out again before delayMs.
+	 */
+	public synchronized void requeue(Request request, long delayMs) {
+		Entry entry = releaseEntry(request);
+		if (entry == null) {
+			entry = new Entry(request, System.currentTimeMillis(), mSequence++);
+		}
+		entry.notBefore = System.currentTimeMillis() + Math.max(0, delayMs);
+		mEntries.add(entry);
+		notifyAll();
+	}
+
+	/**
+	 * Removes a request that hasn't been handed out yet.
+	 * 
+	 * @return true if the request was queued
+	 */
+	public synchronized boolean remove(Request request) {
+		final Iterator<Entry> iterator = mEntries.iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().request == request) {
+				iterator.remove();
+				notifyAll();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the requests queued or in flight
+	 */
+	public synchronized ArrayList<Request> getRequests() {
+		final ArrayList<Request> requests = new ArrayList<Request>();
+		for (Entry entry : mEntries) {
+			requests.add(entry.request);
+		}
+		requests.addAll(mInFlight.keySet());
+		return requests;
+	}
+
+	public synchronized boolean isEmpty() {
+		return mEntries.isEmpty();
+	}
+
+	/**
+	 * @return true if nothing is queued nor in flight
+	 */
+	public synchronized boolean isIdle() {
+		return mEntries.isEmpty() && mInFlight.isEmpty();
+	}
+
+	/**
+	 * Wakes up every waiting worker and stops handing out requests.
+	 */
+	public synchronized void close() {
+		mIsClosed = true;
+		notifyAll();
+	}
+
+	public synchronized boolean isClosed() {
+		return mIsClosed;
+	}
+
+	/**
+	 * Starts handing out requests again after {@link #close()}.
+	 */
+	public synchronized void open() {
+		mIsClosed = false;
+		notifyAll();
+	}
+
+	private Request pollAvailable() {
+		final long now = System.currentTimeMillis();
+		Entry best = null;
+		long bestRank = 0;
+		final Iterator<Entry> iterator = mEntries.iterator();
+		while (iterator.hasNext()) {
+			final Entry entry = iterator.next();
+			if (entry.request.isCancelled()) {
+				// Handed out right away, so the dispatcher can let go of the
+				// requests waiting for its result.
+				best = entry;
+				best.host = getHostKey(entry.request);
+				break;
+			}
+			if (entry.notBefore > now) {
+				// Delayed
+				continue;
+			}
+			final String host = getHostKey(entry.request);
+			final Integer count = mHostCounts.get(host);
+			if (mMaxPerHost != NO_LIMIT && count != null && count >= mMaxPerHost) {
+				continue;
+			}
+			final long rank = getRank(entry, now);
+			if (best == null || rank > bestRank || (rank == bestRank && entry.sequence < best.sequence)) {
+				best = entry;
+				bestRank = rank;
+				best.host = host;
+			}
+		}
+		if (best == null) {
+			return null;
+		}
+		mEntries.remove(best);
+		mInFlight.put(best.request, best);
+		final Integer count = mHostCounts.get(best.host);
+		mHostCounts.put(best.host, count == null ? 1 : count + 1);
+		return best.request;
+	}
+
+	/**
+	 * @return the time until the next delayed request is due, or 0 if there
+	 *         isn't any
+	 */
+	private long getNextDueIn() {
+		final long now = System.currentTimeMillis();
+		long dueIn = 0;
+		for (Entry entry : mEntries) {
+			final long delay = entry.notBefore - now;
+			if (delay > 0 && (dueIn == 0 || delay < dueIn)) {
+				dueIn = delay;
+			}
+		}
+		return dueIn;
+	}
+
+	private Entry releaseEntry(Request request) {
+		final Entry entry = mInFlight.remove(request);
+		if (entry != null) {
+			final int count = mHostCounts.get(entry.host) - 1;
+			if (count <= 0) {
+				mHostCounts.remove(entry.host);
+			} else {
+				mHostCounts.put(entry.host, count);
+			}
+		}
+		return entry;
+	}
+
+	private static long getRank(Entry entry, long now) {
+		final int priority = entry.request.getPriority();
+		final long rank;
+		if (priority == Downloader.DOWNLOADER_HIGH_PRIORITY) {
+			rank = 2;
+		} else if (priority == Downloader.DOWNLOADER_RETRY_LOW_PRIORITY) {
+			rank = 0;
+		} else {
+			rank = 1;
+		}
+		return rank + (now - entry.enqueuedAt) / AGING_INTERVAL_MS;
+	}
+
+	private static String getHostKey(Request request) {
+		final UrlAddress urlAddress = request.getUrlAddress();
+		return urlAddress != null ? urlAddress.getHostKey() : "";
+	}
+}
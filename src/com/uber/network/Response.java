@@ -33,19 +33,31 @@ import com.uber.utils.StreamUtils;
 import android.graphics.Bitmap;
 import android.util.Log;
 
-public class Response {
+public class Response implements Cloneable {
 
 	public final static int XML_TYPE = 600;
 	public final static int JSON_TYPE = 601;
 	public final static int IMAGE_TYPE = 602;
 	public final static int NO_TYPE = 603;
 
+	private static final int OBJECT_OVERHEAD = 64;
+	// How much more than its text a parsed tree of nodes weighs.
+	private static final int PARSED_TREE_RATIO = 4;
+
 	private String mStringData;
 	private long mLastModified;
 	private int mResponseCode = -1;
 	private Request mRequest;
 
 	public static Response create(Request request, InputStream data, HttpURLConnection connection) throws ResponseException {
+		try {
+			return create(request, data, connection.getResponseCode(), connection.getLastModified());
+		} catch (IOException e) {
+			throw new ResponseException("Could not read response code.");
+		}
+	}
+
+	public static Response create(Request request, InputStream data, int responseCode, long lastModified) throws ResponseException {
 		if (data == null) {
 			return null;
 		}
@@ -62,19 +74,23 @@ public class Response {
 				throw new ResponseException("Could not parse Xml.");
 			}
 		} else if (responseType == JSON_TYPE) {
-			try {
-				stringData = StreamUtils.streamToString(data);
-				
-				response = new JsonResponse(stringData, connection.getResponseCode());
-			} catch (IOException e) {
-				throw new ResponseException("Could not convert stream to string for JSON response.");
+			if (request.isStringDataKept()) {
+				try {
+					stringData = StreamUtils.streamToString(data);
+					
+					response = new JsonResponse(stringData, responseCode);
+				} catch (IOException e) {
+					throw new ResponseException("Could not convert stream to string for JSON response.");
+				}
+			} else {
+				response = new JsonResponse(data, responseCode);
 			}
 		} else if (responseType == IMAGE_TYPE) {
 			response = new ImageResponse(data, request);
 		} else {
 			response = new Response();
 		}
-		if (response != null && !(response instanceof ImageResponse)) {
+		if (response != null && !(response instanceof ImageResponse) && !(response instanceof JsonResponse && stringData == null)) {
 			if (stringData == null) {
 				stringData = StreamUtils.streamToString(data);
 			}
@@ -82,12 +98,26 @@ public class Response {
 		}
 			
 		response.setRequest(request);
-		response.setLastModified(connection.getLastModified());
+		response.setLastModified(lastModified);
 		response.setResponseCode(request.getResponseCode());
 
 		return response;
 	}
 
+	/**
+	 * @return a copy of this response sharing the same parsed data, but
+	 *         answering the given request
+	 */
+	Response copyFor(Request request) {
+		try {
+			final Response response = (Response) clone();
+			response.setRequest(request);
+			return response;
+		} catch (CloneNotSupportedException e) {
+			return this;
+		}
+	}
+
 	private void setRequest(Request request) {
 		mRequest = request;
 	}
@@ -104,10 +134,21 @@ public class Response {
 		mLastModified = lastModified;
 	}
 
+	/**
+	 * @return the body as text, see {@link Request#setStringDataKept(boolean)}
+	 *         for JSON responses
+	 */
 	public String getStringData() {
 		return mStringData;
 	}
 
+	/**
+	 * @return the length in chars of the text the response was parsed from
+	 */
+	int getSourceLength() {
+		return mStringData != null ? mStringData.length() : 0;
+	}
+
 	public long getLastModified() {
 		return mLastModified;
 	}
@@ -120,6 +161,23 @@ public class Response {
 		return null;
 	}
 
+	/**
+	 * @return a rough estimate of the memory retained by this response in
+	 *         bytes
+	 */
+	public int getEstimatedSize() {
+		final int textSize = mStringData != null ? mStringData.length() * 2 : 0;
+		int size = OBJECT_OVERHEAD + textSize;
+		if (getDataNode() != null) {
+			size += getSourceLength() * 2 * PARSED_TREE_RATIO;
+		}
+		final Bitmap bitmap = getBitmap();
+		if (bitmap != null) {
+			size += bitmap.getRowBytes() * bitmap.getHeight();
+		}
+		return size;
+	}
+
 	public void setResponseCode(int responseCode) {
 		mResponseCode = responseCode;
 	}
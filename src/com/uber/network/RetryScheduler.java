@@ -0,0 +1,137 @@
+/**
+    UberAndroidNetwork: A JSON/XML network abstraction layer
+    Copyright (c) 2011 by Jordan Bonnet, Uber Technologies
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+*/
+
+package com.uber.network;
+
+import java.util.Random;
+
+/**
+ * Decides when a failed request is tried again. Retries are spread with
+ * exponential backoff and full jitter, unless the server asked for a delay
+ * with Retry-After. A process-wide budget caps retries to a fraction of the
+ * requests sent, plus a small steady allowance, so that phones don't all
+ * hammer the API in lockstep after an outage.
+ */
+public class RetryScheduler {
+
+	public static final long DEFAULT_BASE_DELAY_MS = 250;
+	public static final long DEFAULT_MAX_DELAY_MS = 30 * 1000;
+	public static final double DEFAULT_BUDGET_RATIO = 0.2;
+	public static final double DEFAULT_MIN_RETRIES_PER_SECOND = 1;
+
+	private static final long MAX_RETRY_AFTER_MS = 5 * 60 * 1000;
+	private static final double MAX_BUDGET = 20;
+
+	private static RetryScheduler sInstance;
+
+	private final Random mRandom = new Random();
+	private long mBaseDelayMs = DEFAULT_BASE_DELAY_MS;
+	private long mMaxDelayMs = DEFAULT_MAX_DELAY_MS;
+	private double mBudgetRatio = DEFAULT_BUDGET_RATIO;
+	private double mMinRetriesPerSecond = DEFAULT_MIN_RETRIES_PER_SECOND;
+	private double mBudget = MAX_BUDGET;
+	private long mLastRefillAt = System.currentTimeMillis();
+	private int mRetryCount = 0;
+	private int mRejectedRetryCount = 0;
+
+	public static synchronized RetryScheduler getInstance() {
+		if (sInstance == null) {
+			sInstance = new RetryScheduler();
+		}
+		return sInstance;
+	}
+
+	private RetryScheduler() {
+	}
+
+	/**
+	 * @param baseDelayMs the delay before the first retry, doubled for every
+	 *            following one
+	 * @param maxDelayMs the cap of the backoff
+	 */
+	public synchronized void setBackoff(long baseDelayMs, long maxDelayMs) {
+		mBaseDelayMs = baseDelayMs;
+		mMaxDelayMs = maxDelayMs;
+	}
+
+	/**
+	 * @param ratio the number of retries earned by each new request
+	 * @param minRetriesPerSecond the retries allowed regardless of traffic
+	 */
+	public synchronized void setBudget(double ratio, double minRetriesPerSecond) {
+		mBudgetRatio = ratio;
+		mMinRetriesPerSecond = minRetriesPerSecond;
+	}
+
+	/**
+	 * Called for every new request, which adds to the retry budget.
+	 */
+	public synchronized void onRequest() {
+		mBudget = Math.min(MAX_BUDGET, mBudget + mBudgetRatio);
+	}
+
+	/**
+	 * Takes one retry out of the budget.
+	 * 
+	 * @return false if the budget is exhausted and the request should fail
+	 */
+	public synchronized boolean tryAcquireRetry() {
+		final long now = System.currentTimeMillis();
+		mBudget = Math.min(MAX_BUDGET, mBudget + (now - mLastRefillAt) * mMinRetriesPerSecond / 1000);
+		mLastRefillAt = now;
+		if (mBudget >= 1) {
+			mBudget -= 1;
+			mRetryCount++;
+			return true;
+		}
+		mRejectedRetryCount++;
+		return false;
+	}
+
+	/**
+	 * @return how long to wait before the next attempt of the request
+	 */
+	public synchronized long nextDelay(Request request) {
+		final int retryCount = request.getRetryCount();
+		request.setRetryCount(retryCount + 1);
+		
+		final long hint = request.getRetryDelay();
+		if (hint >= 0) {
+			request.setRetryDelay(-1);
+			return Math.min(hint, MAX_RETRY_AFTER_MS);
+		}
+		final long ceiling = Math.min(mMaxDelayMs, mBaseDelayMs << Math.min(retryCount, 16));
+		return (long) (mRandom.nextDouble() * ceiling);
+	}
+
+	public synchronized int getRetryCount() {
+		return mRetryCount;
+	}
+
+	/**
+	 * @return the number of retries refused because the budget was exhausted
+	 */
+	public synchronized int getRejectedRetryCount() {
+		return mRejectedRetryCount;
+	}
+}
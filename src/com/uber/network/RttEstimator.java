@@ -0,0 +1,174 @@
+/**
+    UberAndroidNetwork: A JSON/XML network abstraction layer
+    Copyright (c) 2011 by Jordan Bonnet, Uber Technologies
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+*/
+
+package com.uber.network;
+
+import java.util.HashMap;
+
+/**
+ * Smoothed round-trip times per server, computed like TCP's retransmission
+ * timeout (RFC 6298): RTO = SRTT + 4 * RTTVAR. Connects and waits for the
+ * first byte of a response are tracked apart, and their RTO is the default
+ * connect and read timeout of the requests that don't set their own. A
+ * timeout doubles the RTO until the next sample. Estimates are kept per
+ * server, not per endpoint, so a slow endpoint needs its own read timeout.
+ * Derived read timeouts only apply to idempotent requests.
+ */
+public class RttEstimator {
+
+	public static final int DEFAULT_MIN_CONNECT_TIMEOUT_MS = 1000;
+	public static final int DEFAULT_MAX_CONNECT_TIMEOUT_MS = 30 * 1000;
+	public static final int DEFAULT_MIN_READ_TIMEOUT_MS = 2000;
+	public static final int DEFAULT_MAX_READ_TIMEOUT_MS = 60 * 1000;
+
+	private static final double ALPHA = 1.0 / 8;
+	private static final double BETA = 1.0 / 4;
+	private static final int K = 4;
+	private static final int MAX_BACKOFF = 8;
+	// Faster connects reused a pooled socket and measured nothing.
+	private static final long POOLED_CONNECT_MAX_MS = 2;
+
+	private static RttEstimator sInstance;
+
+	private static class Estimate {
+		double srtt = -1;
+		double rttvar = 0;
+		int backoff = 1;
+
+		void addSample(long rtt) {
+			if (srtt < 0) {
+				srtt = rtt;
+				rttvar = rtt / 2.0;
+			} else {
+				rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+				srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+			}
+			backoff = 1;
+		}
+
+		int getTimeout(int min, int max) {
+			if (srtt < 0) {
+				// Nothing measured yet, don't risk a false timeout.
+				return max;
+			}
+			final double rto = (srtt + K * rttvar) * backoff;
+			return (int) Math.max(min, Math.min(max, rto));
+		}
+	}
+
+	private final HashMap<String, Estimate> mConnectEstimates = new HashMap<String, Estimate>();
+	private final HashMap<String, Estimate> mResponseEstimates = new HashMap<String, Estimate>();
+	private int mMinConnectTimeout = DEFAULT_MIN_CONNECT_TIMEOUT_MS;
+	private int mMaxConnectTimeout = DEFAULT_MAX_CONNECT_TIMEOUT_MS;
+	private int mMinReadTimeout = DEFAULT_MIN_READ_TIMEOUT_MS;
+	private int mMaxReadTimeout = DEFAULT_MAX_READ_TIMEOUT_MS;
+	private int mReusedConnectCount = 0;
+	private int mNewConnectCount = 0;
+
+	public static synchronized RttEstimator getInstance() {
+		if (sInstance == null) {
+			sInstance = new RttEstimator();
+		}
+		return sInstance;
+	}
+
+	private RttEstimator() {
+	}
+
+	/**
+	 * Sets the floor and ceiling of the derived timeouts, in ms.
+	 */
+	public synchronized void setBounds(int minConnectTimeout, int maxConnectTimeout, int minReadTimeout, int maxReadTimeout) {
+		mMinConnectTimeout = minConnectTimeout;
+		mMaxConnectTimeout = maxConnectTimeout;
+		mMinReadTimeout = minReadTimeout;
+		mMaxReadTimeout = maxReadTimeout;
+	}
+
+	/**
+	 * Records the time it took to connect to a server. Connects that went
+	 * over an idle pooled connection are too fast to tell, they are only
+	 * counted.
+	 */
+	public synchronized void recordConnect(String server, long rtt) {
+		if (rtt < POOLED_CONNECT_MAX_MS) {
+			mReusedConnectCount++;
+			return;
+		}
+		mNewConnectCount++;
+		getEstimate(mConnectEstimates, server).addSample(rtt);
+	}
+
+	/**
+	 * Records the time between sending a request and the start of its
+	 * response.
+	 */
+	public synchronized void recordResponse(String server, long rtt) {
+		getEstimate(mResponseEstimates, server).addSample(rtt);
+	}
+
+	public synchronized void recordTimeout(String server) {
+		final Estimate connectEstimate = getEstimate(mConnectEstimates, server);
+		connectEstimate.backoff = Math.min(MAX_BACKOFF, connectEstimate.backoff * 2);
+		final Estimate responseEstimate = getEstimate(mResponseEstimates, server);
+		responseEstimate.backoff = Math.min(MAX_BACKOFF, responseEstimate.backoff * 2);
+	}
+
+	public synchronized int getConnectTimeout(String server) {
+		return getEstimate(mConnectEstimates, server).getTimeout(mMinConnectTimeout, mMaxConnectTimeout);
+	}
+
+	public synchronized int getReadTimeout(String server) {
+		return getEstimate(mResponseEstimates, server).getTimeout(mMinReadTimeout, mMaxReadTimeout);
+	}
+
+	/**
+	 * @return the number of recorded connects that reused a pooled connection
+	 */
+	public synchronized int getReusedConnectCount() {
+		return mReusedConnectCount;
+	}
+
+	/**
+	 * @return the number of recorded connects that opened a new connection
+	 */
+	public synchronized int getNewConnectCount() {
+		return mNewConnectCount;
+	}
+
+	/**
+	 * @return the smoothed response time of the server in ms, or -1
+	 */
+	public synchronized double getSmoothedRtt(String server) {
+		return getEstimate(mResponseEstimates, server).srtt;
+	}
+
+	private static Estimate getEstimate(HashMap<String, Estimate> estimates, String server) {
+		Estimate estimate = estimates.get(server);
+		if (estimate == null) {
+			estimate = new Estimate();
+			estimates.put(server, estimate);
+		}
+		return estimate;
+	}
+}
@@ -0,0 +1,142 @@
+/**
+    UberAndroidNetwork: A JSON/XML network abstraction layer
+    Copyright (c) 2011 by Jordan Bonnet, Uber Technologies
+
+    Permission is hereby granted, free of charge, to any person obtaining a copy
+    of this software and associated documentation files (the "Software"), to deal
+    in the Software without restriction, including without limitation the rights
+    to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+    copies of the Software, and to permit persons to whom the Software is
+    furnished to do so, subject to the following conditions:
+
+    The above copyright notice and this permission notice shall be included in
+    all copies or substantial portions of the Software.
+
+    THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+    IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+    FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+    AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+    LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+    OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+    THE SOFTWARE.
+*/
+
+package com.uber.network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+/**
+ * Shared socket factory for https connections. The SSLContext behind it is
+ * built once, so its session cache lets later connections to the same server
+ * resume the TLS session instead of doing a full handshake. Set it on each
+ * connection rather than as the HttpsURLConnection default.
+ */
+public class UberSSLSocketFactory extends SSLSocketFactory {
+
+	private static final int SESSION_CACHE_SIZE = 32;
+	private static final int SESSION_TIMEOUT_S = 24 * 60 * 60;
+
+	private static UberSSLSocketFactory sInstance;
+
+	private final SSLSocketFactory mDelegate;
+	private final AtomicInteger mHandshakeCount = new AtomicInteger();
+	private final AtomicInteger mResumedHandshakeCount = new AtomicInteger();
+
+	public static synchronized UberSSLSocketFactory getInstance() throws GeneralSecurityException {
+		if (sInstance == null) {
+			final SSLContext sslContext = SSLContext.getInstance("TLS");
+			sslContext.init(null, new TrustManager[] { new UberTrustManager() }, new SecureRandom());
+			sslContext.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+			sslContext.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_S);
+			sInstance = new UberSSLSocketFactory(sslContext.getSocketFactory());
+		}
+		return sInstance;
+	}
+
+	private UberSSLSocketFactory(SSLSocketFactory delegate) {
+		mDelegate = delegate;
+	}
+
+	/**
+	 * @return the number of TLS handshakes done by sockets of this factory
+	 */
+	public int getHandshakeCount() {
+		return mHandshakeCount.get();
+	}
+
+	/**
+	 * @return the number of those handshakes that resumed a cached session
+	 */
+	public int getResumedHandshakeCount() {
+		return mResumedHandshakeCount.get();
+	}
+
+	@Override
+	public String[] getDefaultCipherSuites() {
+		return mDelegate.getDefaultCipherSuites();
+	}
+
+	@Override
+	public String[] getSupportedCipherSuites() {
+		return mDelegate.getSupportedCipherSuites();
+	}
+
+	@Override
+	public Socket createSocket() throws IOException {
+		return track(mDelegate.createSocket());
+	}
+
+	@Override
+	public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+		return track(mDelegate.createSocket(socket, host, port, autoClose));
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException {
+		return track(mDelegate.createSocket(host, port));
+	}
+
+	@Override
+	public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+		return track(mDelegate.createSocket(host, port, localHost, localPort));
+	}
+
+	@Override
+	public Socket createSocket(InetAddress host, int port) throws IOException {
+		return track(mDelegate.createSocket(host, port));
+	}
+
+	@Override
+	public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+		return track(mDelegate.createSocket(address, port, localAddress, localPort));
+	}
+
+	private Socket track(Socket socket) {
+		if (socket instanceof SSLSocket) {
+			final long createdAt = System.currentTimeMillis();
+			((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+				@Override
+				public void handshakeCompleted(HandshakeCompletedEvent event) {
+					mHandshakeCount.incrementAndGet();
+					// A session older than the socket comes from the cache.
+					if (event.getSession().getCreationTime() < createdAt) {
+						mResumedHandshakeCount.incrementAndGet();
+					}
+				}
+			});
+		}
+		return socket;
+	}
+}
@@ -23,12 +23,66 @@
 
 package com.uber.network;
 
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 
 public class UrlAddress {
+
+	/**
+	 * Requests go to the first address, which moves to the end of the list
+	 * when it fails.
+	 */
+	public static final int SELECTION_ROTATION = 0;
+	
+	/**
+	 * Requests go to the address with the best mix of latency and error rate,
+	 * and addresses that haven't been used for a while get probed again.
+	 */
+	public static final int SELECTION_LATENCY = 1;
+
+	public static final int CIRCUIT_CLOSED = 0;
+	public static final int CIRCUIT_OPEN = 1;
+	public static final int CIRCUIT_HALF_OPEN = 2;
+
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	public static final long DEFAULT_OPEN_DURATION_MS = 30 * 1000;
+	public static final int DEFAULT_COMPRESSION_MIN_SIZE = 1024;
+
+	// Weight of the last sample in the moving averages.
+	private static final double EWMA_ALPHA = 0.3;
+	// How much a 100% error rate inflates the latency of an address.
+	private static final double ERROR_PENALTY = 10;
+	private static final long PROBE_INTERVAL_MS = 30 * 1000;
+	// Probes are also spaced by that many requests, for sparse traffic.
+	private static final int PROBE_MIN_SELECTIONS = 20;
+	private static final int LATENCY_SAMPLES = 64;
+
+	private static class AddressStats {
+		double latencyMs = -1;
+		double errorRate = 0;
+		long lastSelectedAt = 0;
+		int circuitState = CIRCUIT_CLOSED;
+		int consecutiveFailures = 0;
+		long openedAt = 0;
+		long probeStartedAt = -1;
+	}
 	
 	private ArrayList<String> mAddresses = new ArrayList<String>();
 	public ArrayList<Integer> mRotationCodes = new ArrayList<Integer>();
+	private final HashMap<String, AddressStats> mStats = new HashMap<String, AddressStats>();
+	private int mSelectionPolicy = SELECTION_ROTATION;
+	private int mFailureThreshold = DEFAULT_FAILURE_THRESHOLD;
+	private long mOpenDurationMs = DEFAULT_OPEN_DURATION_MS;
+	private final long[] mLatencySamples = new long[LATENCY_SAMPLES];
+	private int mLatencySampleCount = 0;
+	private boolean mIsCompressionEnabled = false;
+	private int mCompressionMinSize = DEFAULT_COMPRESSION_MIN_SIZE;
+	// No probe before the first interval, the first requests measure enough.
+	private long mLastProbeAt = System.currentTimeMillis();
+	private int mSelectionsSinceProbe = 0;
 	
 	
 	public UrlAddress() {
@@ -42,48 +96,274 @@ public class UrlAddress {
 		addAddress(host, port);
 	}
 	
-	public void addAddresses(ArrayList<String> servers) {
+	public synchronized void addAddresses(ArrayList<String> servers) {
 		mAddresses.addAll(servers);
 	}
 	
-	public void addAddress(String server) {
+	public synchronized void addAddress(String server) {
 		mAddresses.add(server);
 	}
 	
-	public void addAddress(String host, int port) {
+	public synchronized void addAddress(String host, int port) {
 		mAddresses.add("http://" + host + ":" + port);
 	}
 	
-	public int size() {
+	public synchronized int size() {
 		return mAddresses.size();
 	}
 	
-	public void clear() {
+	public synchronized void clear() {
 		mAddresses.clear();
 	}
 	
-	public String getAddress(int index) {
+	public synchronized String getAddress(int index) {
 		if (mAddresses.size() > 0) {
 			return mAddresses.get(index);
 		}
 		return "";
 	}
 	
-	public String getAddress() {
+	public synchronized String getAddress() {
 		return getAddress(0);
 	}
 	
-	public void rotateAddress() {
+	/**
+	 * @return the scheme, host and port of the current address, which
+	 *         identifies the server a request will connect to
+	 */
+	public synchronized String getHostKey() {
+		final String address = getAddress();
+		try {
+			final URL url = new URL(address);
+			final int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+			return url.getProtocol() + "://" + url.getHost() + ":" + port;
+		} catch (MalformedURLException e) {
+			return address;
+		}
+	}
+	
+	/**
+	 * @return the host names of all the addresses, without duplicates
+	 */
+	public synchronized ArrayList<String> getHosts() {
+		final ArrayList<String> hosts = new ArrayList<String>();
+		for (String address : mAddresses) {
+			try {
+				final String host = new URL(address).getHost();
+				if (!hosts.contains(host)) {
+					hosts.add(host);
+				}
+			} catch (MalformedURLException e) {
+				// Not a host we can resolve
+			}
+		}
+		return hosts;
+	}
+	
+	public synchronized void rotateAddress() {
 		if (mAddresses.size() > 0) {
 			mAddresses.add(mAddresses.remove(0));
 		}
 	}
 
-	public void setRotationCodes(ArrayList<Integer> rotationCodes) {
+	public synchronized void setSelectionPolicy(int selectionPolicy) {
+		mSelectionPolicy = selectionPolicy;
+	}
+
+	/**
+	 * Sets when the circuit breaker of an address trips: once it has failed
+	 * failureThreshold times in a row, requests skip it for openDurationMs.
+	 * Then a single probe request at a time is let through until one succeeds.
+	 * 
+	 * @param failureThreshold the number of failures in a row, or 0 to never
+	 *            skip an address
+	 */
+	public synchronized void setCircuitBreaker(int failureThreshold, long openDurationMs) {
+		mFailureThreshold = failureThreshold;
+		mOpenDurationMs = openDurationMs;
+	}
+
+	/**
+	 * Gzips the bodies of all the requests to these servers that are at least
+	 * minSize bytes long, or of unknown size. Requests can also opt in one by
+	 * one with {@link Request#setCompressionEnabled(boolean)}.
+	 */
+	public synchronized void setCompression(boolean isEnabled, int minSize) {
+		mIsCompressionEnabled = isEnabled;
+		mCompressionMinSize = minSize;
+	}
+
+	public synchronized boolean isCompressionEnabled() {
+		return mIsCompressionEnabled;
+	}
+
+	public synchronized int getCompressionMinSize() {
+		return mCompressionMinSize;
+	}
+
+	/**
+	 * Picks the address the next attempt of a request should go to, skipping
+	 * those whose circuit breaker is open.
+	 * 
+	 * @return the address, or null if every address is unavailable
+	 */
+	public synchronized String selectAddress() {
+		final long now = System.currentTimeMillis();
+		String best = null;
+		if (mSelectionPolicy != SELECTION_LATENCY) {
+			for (String address : mAddresses) {
+				if (isSelectable(getStats(address), now)) {
+					best = address;
+					break;
+				}
+			}
+		} else {
+			double bestScore = 0;
+			for (String address : mAddresses) {
+				final AddressStats stats = getStats(address);
+				if (!isSelectable(stats, now)) {
+					continue;
+				}
+				if (stats.latencyMs < 0) {
+					// Never measured, try it.
+					best = address;
+					break;
+				}
+				final double score = stats.latencyMs * (1 + ERROR_PENALTY * stats.errorRate);
+				if (best == null || score < bestScore) {
+					best = address;
+					bestScore = score;
+				}
+			}
+			mSelectionsSinceProbe++;
+			if (now - mLastProbeAt > PROBE_INTERVAL_MS && mSelectionsSinceProbe > PROBE_MIN_SELECTIONS) {
+				for (String address : mAddresses) {
+					final AddressStats stats = getStats(address);
+					if (!address.equals(best) && now - stats.lastSelectedAt > PROBE_INTERVAL_MS && isSelectable(stats, now)) {
+						// Give a demoted address a chance to show it got better,
+						// with at most one request per interval.
+						best = address;
+						mLastProbeAt = now;
+						mSelectionsSinceProbe = 0;
+						break;
+					}
+				}
+			}
+		}
+		if (best != null) {
+			final AddressStats stats = getStats(best);
+			stats.lastSelectedAt = now;
+			if (stats.circuitState != CIRCUIT_CLOSED) {
+				// This request is the probe.
+				stats.circuitState = CIRCUIT_HALF_OPEN;
+				stats.probeStartedAt = now;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Records the time a server took to start answering.
+	 */
+	public synchronized void recordSuccess(String address, long latencyMs) {
+		final AddressStats stats = getStats(address);
+		stats.latencyMs = stats.latencyMs < 0 ? latencyMs : EWMA_ALPHA * latencyMs + (1 - EWMA_ALPHA) * stats.latencyMs;
+		mLatencySamples[mLatencySampleCount++ % LATENCY_SAMPLES] = latencyMs;
+		stats.errorRate = (1 - EWMA_ALPHA) * stats.errorRate;
+		stats.consecutiveFailures = 0;
+		stats.circuitState = CIRCUIT_CLOSED;
+		stats.probeStartedAt = -1;
+	}
+
+	/**
+	 * @param percentile between 0 and 1
+	 * @return the given percentile of the recent latencies of all addresses in
+	 *         ms, or -1 if there are too few of them yet
+	 */
+	public synchronized long getLatencyPercentile(double percentile) {
+		final int count = Math.min(mLatencySampleCount, LATENCY_SAMPLES);
+		if (count < LATENCY_SAMPLES / 4) {
+			return -1;
+		}
+		final long[] samples = new long[count];
+		System.arraycopy(mLatencySamples, 0, samples, 0, count);
+		Arrays.sort(samples);
+		return samples[Math.min(count - 1, (int) (percentile * count))];
+	}
+
+	/**
+	 * @return a healthy address other than the given one, or null if there is
+	 *         none
+	 */
+	public synchronized String selectAlternateAddress(String address) {
+		for (String alternate : mAddresses) {
+			if (!alternate.equals(address) && getStats(alternate).circuitState == CIRCUIT_CLOSED) {
+				return alternate;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Records a failure to connect to a server, or an error code from it.
+	 */
+	public synchronized void recordFailure(String address) {
+		final AddressStats stats = getStats(address);
+		stats.errorRate = EWMA_ALPHA + (1 - EWMA_ALPHA) * stats.errorRate;
+		stats.consecutiveFailures++;
+		if (stats.circuitState == CIRCUIT_HALF_OPEN || (mFailureThreshold > 0 && stats.consecutiveFailures >= mFailureThreshold)) {
+			stats.circuitState = CIRCUIT_OPEN;
+			stats.openedAt = System.currentTimeMillis();
+			stats.probeStartedAt = -1;
+		}
+	}
+
+	/**
+	 * @return one of CIRCUIT_CLOSED, CIRCUIT_OPEN or CIRCUIT_HALF_OPEN
+	 */
+	public synchronized int getCircuitState(String address) {
+		return getStats(address).circuitState;
+	}
+
+	/**
+	 * @return the smoothed latency of the address in ms, or -1 if unknown
+	 */
+	public synchronized double getLatency(String address) {
+		return getStats(address).latencyMs;
+	}
+
+	/**
+	 * @return the smoothed error rate of the address, between 0 and 1
+	 */
+	public synchronized double getErrorRate(String address) {
+		return getStats(address).errorRate;
+	}
+
+	private boolean isSelectable(AddressStats stats, long now) {
+		if (stats.circuitState == CIRCUIT_CLOSED) {
+			return true;
+		}
+		if (now - stats.openedAt < mOpenDurationMs) {
+			return false;
+		}
+		// Only one probe at a time, unless it got lost along the way.
+		return stats.probeStartedAt < 0 || now - stats.probeStartedAt > mOpenDurationMs;
+	}
+
+	private AddressStats getStats(String address) {
+		AddressStats stats = mStats.get(address);
+		if (stats == null) {
+			stats = new AddressStats();
+			mStats.put(address, stats);
+		}
+		return stats;
+	}
+
+	public synchronized void setRotationCodes(ArrayList<Integer> rotationCodes) {
 		mRotationCodes = rotationCodes;
 	}
 
-	public boolean shouldRotateWithCode(int responseCode) {
+	public synchronized boolean shouldRotateWithCode(int responseCode) {
 		if(mRotationCodes != null){
 			return mRotationCodes.contains(responseCode);
 		}
@@ -28,8 +28,6 @@ import java.util.ArrayList;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
-import com.uber.utils.NumberUtils;
-
 public class XmlNode extends DataNode {
 	
 	private Node mNode;
@@ -45,10 +43,11 @@ public class XmlNode extends DataNode {
 
 	@Override
 	public DataNode getNode(String name) {
-		final ArrayList<DataNode> dataNodes = getArray();
-		for (DataNode dataNode : dataNodes) {
-			if (dataNode.getName().equals(name)) {
-				return dataNode;
+		final NodeList nodes = mNode.getChildNodes();
+		for (int i = 0; i < nodes.getLength(); ++i) {
+			final Node node = nodes.item(i);
+			if (node.getNodeName().equals(name)) {
+				return new XmlNode(node);
 			}
 		}
 		return null;
@@ -69,6 +68,21 @@ public class XmlNode extends DataNode {
 		return dataNodes;
 	}
 
+	@Override
+	public int getChildCount() {
+		return mNode.getChildNodes().getLength();
+	}
+
+	@Override
+	public DataNode getChildAt(int index) {
+		return new XmlNode(mNode.getChildNodes().item(index));
+	}
+
+	@Override
+	int getArrayLength() {
+		return getChildCount();
+	}
+
 	@Override
 	public String getString(String defaultString) {
 		if (mNode.hasChildNodes()) {
@@ -79,10 +93,12 @@ public class XmlNode extends DataNode {
 
 	@Override
 	public int getInt(int defaultInt) {
-		if (mNode.hasChildNodes()) {
-			final Integer intValue = NumberUtils.parseInteger(mNode.getFirstChild().getNodeValue());
-			if (intValue != null) {
-				return intValue;
+		final String text = getText();
+		if (text != null) {
+			try {
+				return Integer.parseInt(text);
+			} catch (NumberFormatException e) {
+				return defaultInt;
 			}
 		}
 		return defaultInt;
@@ -90,26 +106,90 @@ public class XmlNode extends DataNode {
 
 	@Override
 	public double getDouble(double defaultDouble) {
-		if (mNode.hasChildNodes()) {
-			final Double doubleValue = NumberUtils.parseDouble(mNode.getFirstChild().getNodeValue());
-			if (doubleValue != null) {
-				return doubleValue;
+		final String text = getText();
+		if (text != null) {
+			try {
+				return Double.parseDouble(text);
+			} catch (NumberFormatException e) {
+				return defaultDouble;
 			}
 		}
 		return defaultDouble;
 	}
 	
+	@Override
+	public float getFloat(float defaultFloat) {
+		final String text = getText();
+		if (text != null) {
+			try {
+				return Float.parseFloat(text);
+			} catch (NumberFormatException e) {
+				return defaultFloat;
+			}
+		}
+		return defaultFloat;
+	}
+	
+	@Override
+	public long getLongValue(long defaultLong) {
+		final String text = getText();
+		if (text != null) {
+			try {
+				return Long.parseLong(text);
+			} catch (NumberFormatException e) {
+				return defaultLong;
+			}
+		}
+		return defaultLong;
+	}
+	
 	@Override
 	public Long getLong(Long defaultLong) {
-		if (mNode.hasChildNodes()) {
-			final Long longValue = NumberUtils.parseLong(mNode.getFirstChild().getNodeValue());
-			if (longValue != null) {
-				return longValue;
+		final String text = getText();
+		if (text != null) {
+			try {
+				return Long.parseLong(text);
+			} catch (NumberFormatException e) {
+				return defaultLong;
 			}
 		}
 		return defaultLong;
 	}
 	
+	@Override
+	public boolean getBooleanValue(boolean defaultBoolean) {
+		final String text = getText();
+		if ("true".equalsIgnoreCase(text)) {
+			return true;
+		} else if ("false".equalsIgnoreCase(text)) {
+			return false;
+		}
+		return defaultBoolean;
+	}
+
+	@Override
+	public Boolean getBoolean(Boolean defaultBoolean) {
+		final String text = getText();
+		if ("true".equalsIgnoreCase(text)) {
+			return Boolean.TRUE;
+		} else if ("false".equalsIgnoreCase(text)) {
+			return Boolean.FALSE;
+		}
+		return defaultBoolean;
+	}
+	
+	/**
+	 * @return the trimmed value of the first child, which every typed getter
+	 *         parses, or null
+	 */
+	private String getText() {
+		if (mNode.hasChildNodes()) {
+			final String value = mNode.getFirstChild().getNodeValue();
+			return value != null ? value.trim() : null;
+		}
+		return null;
+	}
+	
 	@Override
 	public String getAttribute(String attributeName, String defaultValue) {
 		if (mNode.hasAttributes()) {
@@ -120,10 +200,5 @@ public class XmlNode extends DataNode {
 		}
 		return defaultValue;
 	}
-
-	@Override
-	public Boolean getBoolean(Boolean defaultBoolean) {
-		throw new RuntimeException("Not supported");
-	}
 	
 }
@@ -23,6 +23,7 @@
 
 package com.uber.network;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -36,13 +37,59 @@ import org.xml.sax.SAXException;
 
 public class XmlResponse extends Response {
 	
+	/**
+	 * Counts the bytes the parser reads, which the size of the tree is
+	 * estimated from.
+	 */
+	private static class CountingInputStream extends FilterInputStream {
+		private long mCount = 0;
+		
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if (b != -1) {
+				mCount++;
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			final int count = super.read(buffer, offset, length);
+			if (count > 0) {
+				mCount += count;
+			}
+			return count;
+		}
+		
+		@Override
+		public long skip(long n) throws IOException {
+			final long skipped = super.skip(n);
+			mCount += skipped;
+			return skipped;
+		}
+		
+		@Override
+		public void close() {
+			// The caller owns the stream.
+		}
+	}
+	
 	private DataNode mDataNode;
+	private int mSourceLength;
 	
 	public XmlResponse(InputStream data) throws ResponseException {
 		try {
 			final DocumentBuilder documentBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-			final Document doc = documentBuilder.parse(data);
+			final CountingInputStream countingStream = new CountingInputStream(data);
+			final Document doc = documentBuilder.parse(countingStream);
+			mSourceLength = (int) Math.min(Integer.MAX_VALUE, countingStream.mCount);
 			mDataNode = new XmlNode(doc);
+			mDataNode.setFindIndexEnabled(true);
 		} catch (ParserConfigurationException e) {
 			throw new ResponseException();
 		} catch (FactoryConfigurationError e) {
@@ -58,5 +105,10 @@ public class XmlResponse extends Response {
 		return mDataNode;
 	}
 
+	@Override
+	int getSourceLength() {
+		return mSourceLength;
+	}
+
 }
 	
\ No newline at end of file
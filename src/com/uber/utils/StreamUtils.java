@@ -1,5 +1,6 @@
 package com.uber.utils;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -24,4 +25,39 @@ public class StreamUtils {
 		
 		return stringBuilder.toString();
 	}
+
+	/**
+	 * Reads whatever is left in the stream and closes it, which lets
+	 * HttpURLConnection put the connection back into its keep-alive pool.
+	 * 
+	 * @return true if the stream has been read to the end
+	 */
+	public static boolean consume(InputStream stream) {
+		if (stream == null) {
+			return true;
+		}
+		final byte[] buffer = new byte[0x1000];
+		boolean isConsumed = false;
+		try {
+			while (stream.read(buffer) != -1) {
+				// Discard
+			}
+			isConsumed = true;
+		} catch (IOException e) {
+			// The connection can't be reused
+		} finally {
+			closeQuietly(stream);
+		}
+		return isConsumed;
+	}
+
+	public static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				// Nothing to do
+			}
+		}
+	}
 }
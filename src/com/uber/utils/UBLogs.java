@@ -64,6 +64,12 @@ public class UBLogs {
 				return;
 			}
 			
+			if (Response.JSON_TYPE == responseType && !request.isStringDataKept()) {
+				// Don't write the whole tree back just for the logs.
+				log += "PARSED RESPONSE \n";
+				return;
+			}
+			
 			String responseString = response.getStringData();
 			
 			responseString = responseString.replaceAll(" ", "");